@@ -0,0 +1,87 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.dam.object.relations.AssetTitleParser.ParsedTitle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Classification (licensed/composition/...) and extraction of the values of asset titles, as done for every document
+ * by {@link AssetRelationsBuilder} and {@link BulkAssetRelationsBuilder}. The titles mix the different cases of the
+ * naming convention, plus titles not following it.
+ *
+ * @since 7.4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AssetTitleParserBenchmark {
+
+    protected static final String[] TITLES = { "15BTMN002B King Of Bats cmp.psd", "15BTMN002 King Of Bats.jpg",
+            "14SPDR117 Web Slinger Tee comp.psd", "16FRZN020A Elsa And Anna Snowflakes COMP.ai",
+            "GR125 basic crew with side tie COMP.psd", "GR125B basic crew with side tie comp comp.psd",
+            "KN12 Cable Knit Beanie cmp.ai", "WV3004 Woven Label Dark comp.pdf", "IMG_20150612_103512.jpg",
+            "Moodboard Fall 2016 - Final version.pptx", "15BTMN.psd", "logo.png" };
+
+    protected final ParsedTitle parsed = new ParsedTitle();
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void classify(Blackhole inBh) {
+
+        for (String title : TITLES) {
+            AssetTitleParser.parse(title, parsed);
+            inBh.consume(BulkAssetRelationsBuilder.getAssetType(parsed));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void extract(Blackhole inBh) {
+
+        for (String title : TITLES) {
+            AssetTitleParser.parse(title, parsed);
+            if (parsed.hasLinkingInfo()) {
+                if (parsed.isLicensed()) {
+                    inBh.consume(parsed.getLicenseYear());
+                    inBh.consume(parsed.getLicenseCode());
+                } else {
+                    inBh.consume(parsed.getDepartment());
+                }
+                inBh.consume(parsed.getSeqNumber());
+                inBh.consume(parsed.getSeqNumberSuffix());
+                inBh.consume(parsed.getName());
+            }
+        }
+    }
+
+}
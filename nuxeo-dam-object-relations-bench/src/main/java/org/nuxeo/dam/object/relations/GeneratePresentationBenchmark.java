@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The HTML generation of {@link GeneratePresentationOp#buildMiniSite()}: rendering of the "3x3" layout (see
+ * {@link PresentationLayout#render(java.io.Writer, String, List)}). Exporting the pictures needs a repository, it is
+ * not part of this benchmark.
+ *
+ * @since 7.4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeneratePresentationBenchmark {
+
+    @Param({ "9", "54", "500" })
+    int imageCount;
+
+    protected static final PresentationLayout LAYOUT_3x3;
+    static {
+        // Same as the contribution (there is no runtime here)
+        PresentationLayoutDescriptor desc = new PresentationLayoutDescriptor();
+        desc.name = "3x3";
+        desc.style = ".floating-box {float: left;width: 310px;height: 370px;margin: none; border: none;}\n"
+                + ".imgThumb {max-width: 310px;max-height: 370px;}\n" + ".mainContainer {width: 1000px;}\n"
+                + "body {text-align:-webkit-center;}\n";
+        LAYOUT_3x3 = new PresentationLayout(desc);
+    }
+
+    protected List<String> imageNames;
+
+    // Same names as GeneratePresentationOp#buildMiniSite()
+    protected static List<String> imageNames(int inCount) {
+
+        List<String> names = new ArrayList<String>(inCount);
+        for (int i = 1; i <= inCount; i++) {
+            names.add("img-" + i + ".jpg");
+        }
+        return names;
+    }
+
+    protected static String buildHtml(String inTitle, List<String> inImageNames) throws IOException {
+
+        StringWriter writer = new StringWriter();
+        LAYOUT_3x3.render(writer, inTitle, inImageNames);
+        return writer.toString();
+    }
+
+    @Setup
+    public void setup() {
+        imageNames = imageNames(imageCount);
+    }
+
+    @Benchmark
+    public String buildHtml() throws IOException {
+        return buildHtml("Fall 2016 Collection", imageNames);
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ParallelZipArchiver} with entries to deflate (HTML pages, style sheets), sequential (threads = 1) and
+ * parallel.
+ *
+ * @since 7.4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelZipArchiverBenchmark {
+
+    @Param({ "1", "4" })
+    int threads;
+
+    @Param({ "16" })
+    int pageCount;
+
+    protected File workingFolder;
+
+    protected File[] pages;
+
+    protected File zipFile;
+
+    @Setup
+    public void setup() throws IOException {
+
+        workingFolder = Files.createTempDirectory("bench-parallelzip-").toFile();
+        pages = new File[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            // About 1MB of HTML, compressible like a real page
+            String html = GeneratePresentationBenchmark.buildHtml("Page " + i,
+                    GeneratePresentationBenchmark.imageNames(10000));
+            pages[i] = new File(workingFolder, "page-" + i + ".html");
+            FileUtils.writeStringToFile(pages[i], html, false);
+        }
+        zipFile = new File(workingFolder, "site.zip");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workingFolder);
+    }
+
+    @Benchmark
+    public long writeTo() throws IOException {
+
+        ParallelZipArchiver archiver = new ParallelZipArchiver(0, threads);
+        for (File page : pages) {
+            archiver.add(page.getName(), page);
+        }
+        archiver.writeTo(zipFile);
+        return zipFile.length();
+    }
+
+}
@@ -30,6 +30,9 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 /**
+ * The former way of zipping the mini-site (see {@link GeneratePresentationOp}), kept as the baseline of
+ * {@link ZipDirectoryBenchmark}.
+ *
  * @since 7.3
  */
 public class ZipDirectory {
@@ -90,9 +93,9 @@ public class ZipDirectory {
 
         // we want the zipEntry's path to be a relative path that is relative
         // to the directory being zipped, so chop off the rest of the path
-        String zipFilePath = file.getCanonicalPath().substring(directoryToZip.getCanonicalPath().length() + 1,
-                file.getCanonicalPath().length());
-        System.out.println("Writing '" + zipFilePath + "' to zip file");
+        // (not using canonical paths: a file can be a symbolic link to a file outside the directory)
+        String zipFilePath = directoryToZip.toPath().relativize(file.toPath()).toString().replace(File.separatorChar,
+                '/');
         ZipEntry zipEntry = new ZipEntry(zipFilePath);
         zos.putNextEntry(zipEntry);
 
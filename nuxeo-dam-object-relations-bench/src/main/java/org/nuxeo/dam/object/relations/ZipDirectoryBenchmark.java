@@ -0,0 +1,115 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ZipDirectory#zip()} of a synthetic mini-site, as built by {@link GeneratePresentationOp}: an index.html and
+ * an img/ folder. The images are random bytes, which, like real JPEGs, do not compress. Compared with
+ * {@link MiniSiteZipWriter}, which GeneratePresentationOp now uses.
+ *
+ * @since 7.4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ZipDirectoryBenchmark {
+
+    // 9 = one page of 3x3, 54 = three pages of Landscape 6x3
+    @Param({ "9", "54" })
+    int imageCount;
+
+    @Param({ "300" })
+    int imageSizeKB;
+
+    protected File workingFolder;
+
+    protected File siteFolder;
+
+    protected File zipFile;
+
+    @Setup
+    public void setup() throws IOException {
+
+        workingFolder = Files.createTempDirectory("bench-minisite-").toFile();
+        siteFolder = new File(workingFolder, "Presentation-3x3-site");
+        File imgFolder = new File(siteFolder, "img");
+        imgFolder.mkdirs();
+
+        Random random = new Random(42);
+        byte[] bytes = new byte[imageSizeKB * 1024];
+        for (int i = 1; i <= imageCount; i++) {
+            random.nextBytes(bytes);
+            FileUtils.writeByteArrayToFile(new File(imgFolder, "img-" + i + ".jpg"), bytes);
+        }
+        FileUtils.writeStringToFile(new File(siteFolder, "index.html"),
+                GeneratePresentationBenchmark.buildHtml("Benchmark",
+                        GeneratePresentationBenchmark.imageNames(imageCount)), false);
+
+        zipFile = new File(workingFolder, "Presentation-3x3-site.zip");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(workingFolder);
+    }
+
+    @Benchmark
+    public long zip() throws IOException {
+
+        new ZipDirectory(siteFolder.getAbsolutePath(), zipFile.getAbsolutePath()).zip();
+        return zipFile.length();
+    }
+
+    @Benchmark
+    public long miniSiteZipWriter() throws IOException {
+
+        MiniSiteZipWriter zipWriter = new MiniSiteZipWriter(zipFile);
+        try {
+            zipWriter.put("index.html", new File(siteFolder, "index.html"));
+            for (String imageName : GeneratePresentationBenchmark.imageNames(imageCount)) {
+                zipWriter.put("img/" + imageName, new File(siteFolder, "img/" + imageName));
+            }
+        } finally {
+            zipWriter.close();
+        }
+        return zipFile.length();
+    }
+
+}
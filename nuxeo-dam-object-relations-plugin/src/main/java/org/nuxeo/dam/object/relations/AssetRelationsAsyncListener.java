@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.api.event.DocumentEventTypes;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.PostCommitFilteringEventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Builds the relations of the Pictures created or modified (renamed, ...), after the commit, in an async. worker: The
+ * user's transaction does not pay for it.
+ * <p>
+ * The ids are queued (one queue per node, without duplicates), and only one worker at a time drains the queue, batch
+ * per batch, using a {@link BulkAssetRelationsBuilder}. The other workers just add their ids and return. So a burst of
+ * uploads is handled in a few batches, each of them with a few queries, and a Picture modified several times while
+ * waiting is handled once.
+ * <p>
+ * Saves done only to update the relations are ignored (see {@link AssetRelationsBuilder#markAsRelationsUpdate}).
+ * <p>
+ * The queue is in memory: Ids queued when a node stops are lost. The incremental mode of {@link UpdatePicturesOp}
+ * catches up.
+ *
+ * @since 7.4
+ */
+public class AssetRelationsAsyncListener implements PostCommitFilteringEventListener {
+
+    private static final Log log = LogFactory.getLog(AssetRelationsAsyncListener.class);
+
+    public static final String BATCH_SIZE_PROP = "dam.object.relations.async.batch.size";
+
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    protected static final String PICTURE_TYPE = "Picture";
+
+    // repository + KEY_SEPARATOR + id, in arrival order
+    protected static final Set<String> queue = new LinkedHashSet<String>();
+
+    protected static final ReentrantLock drainLock = new ReentrantLock();
+
+    protected static final char KEY_SEPARATOR = '\u001F';
+
+    @Override
+    public boolean acceptEvent(Event event) {
+
+        String name = event.getName();
+        if (!DocumentEventTypes.DOCUMENT_CREATED.equals(name) && !DocumentEventTypes.DOCUMENT_UPDATED.equals(name)) {
+            return false;
+        }
+
+        EventContext ctx = event.getContext();
+        if (!(ctx instanceof DocumentEventContext)) {
+            return false;
+        }
+        if (Boolean.TRUE.equals(ctx.getProperty(AssetRelationsBuilder.CONTEXT_RELATIONS_UPDATE))) {
+            return false;
+        }
+
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        return doc != null && PICTURE_TYPE.equals(doc.getType()) && !doc.isProxy() && !doc.isVersion();
+    }
+
+    @Override
+    public void handleEvent(EventBundle events) {
+
+        for (Event event : events) {
+            if (acceptEvent(event)) {
+                DocumentModel doc = ((DocumentEventContext) event.getContext()).getSourceDocument();
+                enqueue(doc.getRepositoryName(), doc.getId());
+            }
+        }
+
+        // An id can be queued just after the worker draining the queue found it empty: Check again once unlocked
+        while (hasQueuedIds() && drainLock.tryLock()) {
+            try {
+                drain();
+            } finally {
+                drainLock.unlock();
+            }
+        }
+    }
+
+    protected static void enqueue(String inRepository, String inId) {
+
+        String key = inRepository + KEY_SEPARATOR + inId;
+        synchronized (queue) {
+            // Moved to the end: The latest event wins
+            queue.remove(key);
+            queue.add(key);
+        }
+    }
+
+    protected static boolean hasQueuedIds() {
+
+        synchronized (queue) {
+            return !queue.isEmpty();
+        }
+    }
+
+    // Removes up to inMax keys of the same repository
+    protected static List<String> nextBatch(int inMax, String[] outRepository) {
+
+        List<String> ids = new ArrayList<String>();
+        synchronized (queue) {
+            Iterator<String> it = queue.iterator();
+            while (it.hasNext() && ids.size() < inMax) {
+                String key = it.next();
+                int pos = key.indexOf(KEY_SEPARATOR);
+                String repository = key.substring(0, pos);
+                if (outRepository[0] == null) {
+                    outRepository[0] = repository;
+                } else if (!outRepository[0].equals(repository)) {
+                    continue;
+                }
+                ids.add(key.substring(pos + 1));
+                it.remove();
+            }
+        }
+        return ids;
+    }
+
+    protected void drain() {
+
+        int batchSize = AssetRelationsCaches.getIntProperty(BATCH_SIZE_PROP, DEFAULT_BATCH_SIZE);
+        String[] repository = new String[1];
+        List<String> ids = nextBatch(batchSize, repository);
+        while (!ids.isEmpty()) {
+            try {
+                new BatchRunner(repository[0], ids).runUnrestricted();
+            } catch (RuntimeException e) {
+                // Don't lose the next batches
+                log.error("Error while building the relations of " + ids.size() + " Pictures", e);
+                TransactionHelper.setTransactionRollbackOnly();
+            }
+            TransactionHelper.commitOrRollbackTransaction();
+            TransactionHelper.startTransaction();
+
+            repository[0] = null;
+            ids = nextBatch(batchSize, repository);
+        }
+    }
+
+    protected static class BatchRunner extends UnrestrictedSessionRunner {
+
+        protected final List<String> ids;
+
+        protected BatchRunner(String inRepository, List<String> inIds) {
+            super(inRepository);
+            ids = inIds;
+        }
+
+        @Override
+        public void run() {
+
+            // Full documents: they are modified
+            String nxql = NxqlBuilder.select().from("Picture").in(NXQL.ECM_UUID, ids).live().build();
+            DocumentModelList docs = session.query(nxql);
+
+            BulkAssetRelationsBuilder builder = new BulkAssetRelationsBuilder(session);
+            int saved = builder.run(docs);
+            if (log.isDebugEnabled()) {
+                log.debug("Batch of " + ids.size() + " Pictures: " + saved + " updated, " + builder.getQueryCount()
+                        + " queries");
+            }
+        }
+    }
+
+}
@@ -16,20 +16,16 @@
  */
 package org.nuxeo.dam.object.relations;
 
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.api.DocumentModelList;
-import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.platform.dublincore.listener.DublinCoreListener;
 import org.nuxeo.runtime.api.Framework;
 
+import com.codahale.metrics.Timer;
+
 /**
  * Making some hard coded assumptions here. For example:
  * <ul>
@@ -79,20 +75,21 @@ public class AssetRelationsBuilder {
 
     public static final String VOC_DEPARTMENT = "Department";
 
-    protected static String ipContractRootPath = null;
-
-    protected static String artFileNumbeContainerPath = null;
-
-    protected static String styleNumbeContainerPath = null;
-
     public static final String USUAL_NXQL_LAST_FILTER = " AND ecm:isCheckedInVersion = 0 AND ecm:isProxy=0 AND ecm:currentLifeCycleState != 'deleted'";
 
+    /**
+     * Context data (and event property) set on the assets saved only to update their relations (see
+     * {@link #markAsRelationsUpdate(DocumentModel)})
+     *
+     * @since 7.4
+     */
+    public static final String CONTEXT_RELATIONS_UPDATE = "damRelationsUpdate";
+
     DocumentModel doc;
 
     String title = null;
 
-    // The title minus the file extension and the Composition Suffix
-    String titleNoExtension = null;
+    AssetTitleParser.ParsedTitle parsedTitle;
 
     int licenseYear = 0;
 
@@ -106,107 +103,325 @@ public class AssetRelationsBuilder {
 
     String department;
 
-    String extension;
-
     ASSET_TYPE assetType = ASSET_TYPE.OTHER;
 
     CoreSession session;
 
     boolean docModifiedAndSaved = false;
 
-    DirectoryService directoryService;
+    RelationTargetResolver resolver;
 
-    List<String> departmentValues = null;
+    // Shared by all the builders
+    protected static final VocabularyIdSet departmentValues = VocabularyIdSet.get(VOC_DEPARTMENT, 10000);
 
     public AssetRelationsBuilder(DocumentModel inDoc, CoreSession inSession) {
+        this(inDoc, inSession, new AssetTitleParser.ParsedTitle());
+    }
+
+    /**
+     * Use this constructor when building the relations of a lot of documents, so the same <code>inParsedTitle</code>
+     * is reused.
+     *
+     * @since 7.4
+     */
+    public AssetRelationsBuilder(DocumentModel inDoc, CoreSession inSession,
+            AssetTitleParser.ParsedTitle inParsedTitle) {
         doc = inDoc;
         session = inSession;
+        parsedTitle = inParsedTitle;
         loadDocTitle();
-
-        directoryService = Framework.getService(DirectoryService.class);
-
-        org.nuxeo.ecm.directory.Session directorySession = directoryService.open(VOC_DEPARTMENT);
-        departmentValues = directorySession.getProjection(new HashMap<String, Serializable>(), "id");
-        directorySession.close();
-
     }
 
-    // Not 100% reliable: If an Admin changes the vocabulary, we don't know that
-    // God enough for a demo.
+    // The set is reloaded from time to time, and a value is always checked against the directory before being created
+    // (see VocabularyIdSet)
     protected void checkDepartmentValueInDirectory(String inValue) {
         inValue = inValue == null ? null : inValue.replace("/",  "-");
-        if (!departmentValues.contains(inValue)) {
-            Map<String, Object> entry = new HashMap<String, Object>();
-            entry.put("id", inValue);
-            entry.put("label", inValue);
-            entry.put("parent", "");
-            entry.put("obsolete", 0);
-            entry.put("ordering", 10000);
-
-            org.nuxeo.ecm.directory.Session directorySession = directoryService.open(VOC_DEPARTMENT);
-            directorySession.createEntry(entry);
-            directorySession.close();
-
-            departmentValues.add(inValue);
+        Timer.Context timer = AssetRelationsMetrics.DIRECTORY.time();
+        try {
+            departmentValues.ensureEntry(inValue);
+        } finally {
+            timer.stop();
         }
     }
 
-    protected String getIpContractRootPath() {
+    protected void saveDoc() {
 
-        if (ipContractRootPath == null) {
-            String nxql = "SELECT * FROM IPcontractRoot WHERE dc:title = '" + IPCONTRACTROOT_TITLE + "'";
-            nxql += USUAL_NXQL_LAST_FILTER;
+        Timer.Context timer = AssetRelationsMetrics.SAVE.time();
+        DocumentModel toSave = doc;
+        markAsRelationsUpdate(toSave);
+        try {
+            doc = session.saveDocument(toSave);
+        } finally {
+            unmarkAsRelationsUpdate(toSave);
+            unmarkAsRelationsUpdate(doc);
+            timer.stop();
+        }
+        docModifiedAndSaved = true;
+    }
 
-            DocumentModelList docs = session.query(nxql);
-            // We give up if we don't find it
-            if (docs.size() == 0) {
-                throw new RuntimeException("Cannot find a IPcontractRoot with dc:title of " + IPCONTRACTROOT_TITLE);
-            }
-            ipContractRootPath = docs.get(0).getPathAsString();
+    protected RelationTargetResolver getResolver() {
+
+        if (resolver == null) {
+            resolver = new RelationTargetResolver(session);
         }
+        return resolver;
+    }
+
+    protected String getIpContractRootPath() {
 
-        return ipContractRootPath;
+        return getIpContractRootPath(session);
     }
 
-    protected String getArtFileNumberContainerPath() {
+    /**
+     * @since 7.4
+     */
+    public static String getIpContractRootPath(CoreSession inSession) {
+        return Framework.getService(StructureRootService.class).getPath(inSession,
+                StructureRootService.IPCONTRACT_ROOT);
+    }
 
-        if (artFileNumbeContainerPath == null) {
-            String nxql = "SELECT * FROM ArtFileNumberContainer WHERE dc:title = '" + ARTFILENUMBERCONTAINER_TITLE
-                    + "'";
-            nxql += USUAL_NXQL_LAST_FILTER;
+    protected String getArtFileNumberContainerPath() {
 
-            DocumentModelList docs = session.query(nxql);
-            // We give up if we don't find it
-            if (docs.size() == 0) {
-                throw new RuntimeException("Cannot find a ArtFileNumberContainer with dc:title of "
-                        + ARTFILENUMBERCONTAINER_TITLE);
-            }
-            artFileNumbeContainerPath = docs.get(0).getPathAsString();
-        }
+        return getArtFileNumberContainerPath(session);
+    }
 
-        return artFileNumbeContainerPath;
+    /**
+     * @since 7.4
+     */
+    public static String getArtFileNumberContainerPath(CoreSession inSession) {
+        return Framework.getService(StructureRootService.class).getPath(inSession,
+                StructureRootService.ART_FILE_NUMBER_CONTAINER);
     }
 
     protected String getStyleNumberContainerPath() {
 
         return getStyleNumberContainerPath(session);
     }
-    
+
+    /**
+     * @since 7.4
+     */
     public static String getStyleNumberContainerPath(CoreSession inSession) {
+        return Framework.getService(StructureRootService.class).getPath(inSession,
+                StructureRootService.STYLE_NUMBER_CONTAINER);
+    }
 
-        if (styleNumbeContainerPath == null) {
-            String nxql = "SELECT * FROM StyleNumberContainer WHERE dc:title = '" + STYLEUMBERCONTAINER_TITLE + "'";
-            nxql += USUAL_NXQL_LAST_FILTER;
+    /**
+     * The name of a relation target is derived from its natural key, so it can be fetched with a {@link PathRef} (see
+     * {@link RelationTargetResolver}). The License name is unchanged (the year has a fixed length).
+     *
+     * @since 7.4
+     */
+    public static String getLicenseName(int inYear, String inCode) {
+        return toPathSegment("" + inYear + inCode + " " + inCode);
+    }
 
-            DocumentModelList docs = inSession.query(nxql);
-            // We give up if we don't find it
-            if (docs.size() == 0) {
-                throw new RuntimeException("Cannot find a StyleNumberContainer with dc:title of " + STYLEUMBERCONTAINER_TITLE);
+    /**
+     * The parts are escaped and joined with '-' (see {@link #joinNameParts(String...)}): The ArtFileNumber number is
+     * not unique, the License id is part of the name.
+     *
+     * @since 7.4
+     */
+    public static String getArtFileNumberName(String inLicenseId, String inNumber) {
+        return joinNameParts(inNumber, inLicenseId);
+    }
+
+    /**
+     * The parts are escaped and joined with '-' (see {@link #joinNameParts(String...)})
+     *
+     * @since 7.4
+     */
+    public static String getStyleNumberName(String inDepartment, String inNumber, String inName) {
+        return joinNameParts(inDepartment, inNumber, inName);
+    }
+
+    /**
+     * Name of the ArtFileNumbers created before 7.4: The parts are just concatenated, so it is ambiguous. Only used to
+     * find them.
+     *
+     * @since 7.4
+     */
+    public static String getLegacyArtFileNumberName(String inNumber, String inName) {
+        return toPathSegment(inNumber + inName);
+    }
+
+    /**
+     * Name of the StyleNumbers created before 7.4: The parts are just concatenated, so it is ambiguous. Only used to
+     * find them.
+     *
+     * @since 7.4
+     */
+    public static String getLegacyStyleNumberName(String inDepartment, String inNumber, String inName) {
+        return toPathSegment(inDepartment + inNumber + inName);
+    }
+
+    /*
+     * '%', '-' and '/' are escaped in each part ("%25", "%2D", "%2F"), so two different lists of parts never give the
+     * same name: ("GR", "12", "5x") => "GR-12-5x", ("GR", "125", "x") => "GR-125-x"
+     */
+    protected static String joinNameParts(String... inParts) {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < inParts.length; i++) {
+            if (i > 0) {
+                sb.append('-');
+            }
+            String part = String.valueOf(inParts[i]);
+            for (int j = 0; j < part.length(); j++) {
+                char c = part.charAt(j);
+                switch (c) {
+                case '%':
+                    sb.append("%25");
+                    break;
+                case '-':
+                    sb.append("%2D");
+                    break;
+                case '/':
+                    sb.append("%2F");
+                    break;
+                default:
+                    sb.append(c);
+                }
             }
-            styleNumbeContainerPath = docs.get(0).getPathAsString();
         }
-        
-        return styleNumbeContainerPath;
+        return sb.toString();
+    }
+
+    protected static String toPathSegment(String inName) {
+        return inName.replace('/', '-');
+    }
+
+    /**
+     * Creates (but does not save) the License (IPcontract) for <code>inYear</code> and <code>inCode</code>.
+     *
+     * @since 7.4
+     */
+    public static DocumentModel createLicense(CoreSession inSession, int inYear, String inCode) {
+
+        DocumentModel licenseDoc = inSession.createDocumentModel(getIpContractRootPath(inSession), getLicenseName(
+                inYear, inCode), "IPcontract");
+
+        licenseDoc.setPropertyValue("license:year", inYear);
+        licenseDoc.setPropertyValue("license:product_line_code", inCode);
+        // We don't have the product_line when extracting from a file
+        licenseDoc.setPropertyValue("license:product_line", inCode);
+        licenseDoc.setPropertyValue("license:has_default_product_line", true);
+
+        // Cached by RelationTargetCacheListener
+        return inSession.createDocument(licenseDoc);
+    }
+
+    /**
+     * Creates (but does not save) the ArtFileNumber
+     *
+     * @since 7.4
+     */
+    public static DocumentModel createArtFileNumber(CoreSession inSession, String inLicenseId, String inNumber,
+            String inName) {
+
+        DocumentModel afnDoc = inSession.createDocumentModel(getArtFileNumberContainerPath(inSession),
+                getArtFileNumberName(inLicenseId, inNumber), "ArtFileNumber");
+
+        afnDoc.setPropertyValue("linking:license_id", inLicenseId);
+        afnDoc.setPropertyValue("art_file_number:number", inNumber);
+        afnDoc.setPropertyValue("art_file_number:short_name", inName);
+
+        // Cached by RelationTargetCacheListener
+        return inSession.createDocument(afnDoc);
+    }
+
+    /**
+     * Creates (but does not save) the StyleNumber
+     *
+     * @since 7.4
+     */
+    public static DocumentModel createStyleNumber(CoreSession inSession, String inDepartment, String inNumber,
+            String inName) {
+
+        DocumentModel styleDoc = inSession.createDocumentModel(getStyleNumberContainerPath(inSession),
+                getStyleNumberName(inDepartment, inNumber, inName), "StyleNumber");
+
+        styleDoc.setPropertyValue("style_number:department", inDepartment);
+        styleDoc.setPropertyValue("style_number:number", inNumber);
+        styleDoc.setPropertyValue("style_number:short_name", inName);
+
+        // Cached by RelationTargetCacheListener
+        return inSession.createDocument(styleDoc);
+    }
+
+    /**
+     * Sets the values of a licensed asset. Does not save the document.
+     *
+     * @return true if at least one value changed (so the document must be saved)
+     * @since 7.4
+     */
+    public static boolean setLicensedAssetValues(DocumentModel inDoc, String inLicenseId, String inArtFileNumberId,
+            String inNature, String inSuffix) {
+
+        boolean changed = setIfChanged(inDoc, "linking:license_id", inLicenseId);
+        changed |= setIfChanged(inDoc, "linking:art_file_number_id", inArtFileNumberId);
+        changed |= setIfChanged(inDoc, "asset:nature", inNature);
+        changed |= setIfChanged(inDoc, "asset:variation_letter", inSuffix);
+        changed |= setIfChanged(inDoc, "asset:licensing", VOC_LICENSED);
+        return changed;
+    }
+
+    /**
+     * Sets the values of a composition resource. Does not save the document.
+     *
+     * @return true if at least one value changed (so the document must be saved)
+     * @since 7.4
+     */
+    public static boolean setCompositionResourceValues(DocumentModel inDoc, String inStyleNumberId, String inSuffix) {
+
+        boolean changed = setIfChanged(inDoc, "linking:style_number_id", inStyleNumberId);
+        changed |= setIfChanged(inDoc, "asset:nature", VOC_COMPOSITION_RESOURCE);
+        changed |= setIfChanged(inDoc, "asset:variation_letter", inSuffix);
+        // doc.setPropertyValue("asset:licensing", VOC_LICENSED);
+        return changed;
+    }
+
+    /*
+     * The property is not touched if it already holds the value (null and "" are the same: An empty string may be
+     * stored as null)
+     */
+    protected static boolean setIfChanged(DocumentModel inDoc, String inXPath, String inValue) {
+
+        Object current = inDoc.getPropertyValue(inXPath);
+        String currentStr = current == null ? "" : current.toString();
+        if (currentStr.equals(inValue == null ? "" : inValue)) {
+            return false;
+        }
+        inDoc.setPropertyValue(inXPath, inValue);
+        return true;
+    }
+
+    /**
+     * Flags <code>inDoc</code> before it is saved only to update its relations: This is not a change made by a user,
+     * so <code>dc:modified</code> is not updated (it is the watermark of the incremental updates), and
+     * {@link AssetRelationsAsyncListener} ignores the event.
+     * <p>
+     * Done by the builders around their own save only: The flags must be removed right after (see
+     * {@link #unmarkAsRelationsUpdate(DocumentModel)}), else the next saves of the document (in the same automation
+     * chain for example) would not update <code>dc:modified</code> either.
+     *
+     * @since 7.4
+     */
+    public static void markAsRelationsUpdate(DocumentModel inDoc) {
+
+        inDoc.putContextData(DublinCoreListener.DISABLE_DUBLINCORE_LISTENER, Boolean.TRUE);
+        inDoc.putContextData(CONTEXT_RELATIONS_UPDATE, Boolean.TRUE);
+    }
+
+    /**
+     * @since 7.4
+     */
+    public static void unmarkAsRelationsUpdate(DocumentModel inDoc) {
+
+        if (inDoc != null) {
+            inDoc.putContextData(DublinCoreListener.DISABLE_DUBLINCORE_LISTENER, null);
+            inDoc.putContextData(CONTEXT_RELATIONS_UPDATE, null);
+        }
     }
 
     /*
@@ -229,53 +444,36 @@ public class AssetRelationsBuilder {
         }
 
         // Minimum 2 numbers, 4 license code, a dot and a file extension
-        if (title.length() < 8) {
-            return doc;
-        }
-
-        extension = "";
-        int pos = title.lastIndexOf('.');
-        if (pos > 0) {
-            extension = title.substring(pos + 1);
-            titleNoExtension = title.substring(0, pos);
-        }
-
-        // Check if starts with 2 digits
-        int year = 0;
+        Timer.Context parseTimer = AssetRelationsMetrics.timeParse();
+        boolean parsed;
         try {
-            year = Integer.parseInt(titleNoExtension.substring(0, 2));
-        } catch (Exception e) {
-            // Ignore, we just want to check if it starts with 2 numbers
+            parsed = AssetTitleParser.parse(title, parsedTitle);
+        } finally {
+            if (parseTimer != null) {
+                parseTimer.stop();
+            }
+        }
+        AssetRelationsMetrics.PARSED.inc();
+        if (!parsed) {
+            return doc;
         }
 
         // Starts with 2 digits and ends with the correct suffix => it's a composition
-        boolean foundComp = false;
-        String titleLC = title.toLowerCase();
-        for (String compValue : COMPOSITION_VALUES) {
-            pos = titleLC.indexOf(compValue);
-            if (pos > 0) { // sure does not start with the value.
-                foundComp = true;
-                
-                titleNoExtension = titleNoExtension.substring(0, pos);
-                if (year > 0) {
-                    doc = handleLicensedCompositionAsset();
-
-                } else {
-                    doc = handleNonLicensedCompositionResource();
-                }
-
-                break;
+        if (parsedTitle.isComposition()) {
+            if (parsedTitle.isLicensed()) {
+                doc = handleLicensedCompositionAsset();
+            } else {
+                doc = handleNonLicensedCompositionResource();
             }
-        }
-        
-        // Not a composition but still maybe an interesting final resource, to link to a License
-        if(!foundComp) {
-            if(year > 0) {
+        } else {
+            // Not a composition but still maybe an interesting final resource, to link to a License
+            if (parsedTitle.isLicensed()) {
                 doc = handleLicensedNonCompositionAsset();
             } else {
                 doc = HandleNonLicensedAsset();
             }
         }
+        AssetRelationsMetrics.countAsset(assetType);
 
         return doc;
     }
@@ -295,85 +493,31 @@ public class AssetRelationsBuilder {
     // GR is the syle, 228 (or 125) the sequence number, then we have the name
     protected DocumentModel handleNonLicensedCompositionResource() {
 
-        String tmp;
-        int pos;
-
         initValues();
 
         // -------------------- Extract Info --------------------
         assetType = ASSET_TYPE.COMPOSITION_RESOURCE;
 
-        tmp = titleNoExtension;
-        pos = tmp.toLowerCase().lastIndexOf(" comp");
-        if (pos > 0) {
-            titleNoExtension = tmp.substring(0, pos);
-        }
-
-        tmp = titleNoExtension;
-        pos = tmp.indexOf(" ");
-        if (pos > 0) {
-            name = tmp.substring(pos + 1);
-            tmp = tmp.substring(0, pos);
-
-            String seqNum = "";
-            // First 1-n letters are the department
-            char[] chars = new char[tmp.length()];
-            tmp.getChars(0, tmp.length(), chars, 0);
-            int i = 0;
-            for (char c : chars) {
-                if (Character.isDigit(c)) {
-                    seqNum = tmp.substring(i);
-                    break;
-                } else {
-                    department += Character.toString(c);
-                }
-                i += 1;
-            }
-
-            SeqNumberExtractor sne = new SeqNumberExtractor(seqNum);
-            seqNumberStr = sne.numberAsStr;
-            seqNumberSuffix = sne.suffix;
-        }
+        department = parsedTitle.getDepartment();
+        seqNumberStr = parsedTitle.getSeqNumber();
+        seqNumberSuffix = parsedTitle.getSeqNumberSuffix();
+        name = parsedTitle.getName();
 
         // -------------------- Check --------------------
         // If we don't have enough information, we just do nothing
-        if (StringUtils.isBlank(department) || StringUtils.isBlank(seqNumberStr) || StringUtils.isBlank(name)) {
+        if (!parsedTitle.hasLinkingInfo()) {
             return doc;
         }
 
         // -------------------- Link to the StyleNumber --------------------
         checkDepartmentValueInDirectory(department);
-        DocumentModel styleDoc;
         // A StyleNumber document has the "linking" and the "style_number" schemas (among others)
-        String nxql = "SELECT * FROM StyleNumber WHERE style_number:department = '" + department + "'";
-        nxql += " AND style_number:number = '" + seqNumberStr + "'";
-        nxql += " AND style_number:short_name = '" + name + "'";
-        nxql += USUAL_NXQL_LAST_FILTER;
-        DocumentModelList docs = session.query(nxql);
-        if (docs.size() == 0) {
-            styleDoc = session.createDocumentModel(getStyleNumberContainerPath(), department + seqNumberStr + name,
-                    "StyleNumber");
-
-            styleDoc.setPropertyValue("style_number:department", department);
-            styleDoc.setPropertyValue("style_number:number", seqNumberStr);
-            styleDoc.setPropertyValue("style_number:short_name", name);
-
-            styleDoc = session.createDocument(styleDoc);
-            styleDoc = session.saveDocument(styleDoc);
+        String styleDocId = getResolver().getOrCreateStyleNumber(department, seqNumberStr, name);
 
-        } else {
-            styleDoc = docs.get(0);
+        // -------------------- Last Update(s), saved only if something changed --------------------
+        if (setCompositionResourceValues(doc, styleDocId, seqNumberSuffix)) {
+            saveDoc();
         }
-        doc.setPropertyValue("linking:style_number_id", styleDoc.getId());
-
-        // -------------------- Last Update(s) --------------------
-        doc.setPropertyValue("asset:nature", VOC_COMPOSITION_RESOURCE);
-        doc.setPropertyValue("asset:variation_letter", seqNumberSuffix);
-        // doc.setPropertyValue("asset:licensing", VOC_LICENSED);
-
-        // -------------------- Ok, we're done --------------------
-        doc = session.saveDocument(doc);
-        docModifiedAndSaved = true;
         return doc;
     }
     
@@ -391,94 +535,40 @@ public class AssetRelationsBuilder {
     }
     
     protected DocumentModel autoLinkLicensedAsset(ASSET_TYPE inType, String inNature) {
-        String tmp;
-        int pos;
 
         initValues();
 
         // -------------------- Extract Info --------------------
         assetType = inType;
-        
-        licenseYear = Integer.parseInt(titleNoExtension.substring(0, 2));
-        licenseCode = title.substring(2, 6);
-
-        // License sequence number is as long the character is a digit
-        tmp = titleNoExtension.substring(6);
-        // Find the space after the seq. number
-        pos = tmp.indexOf(" ");
-        if (pos > 0) {
 
-            name = tmp.substring(pos + 1);
-            String seqNum = tmp.substring(0, pos);
-
-            SeqNumberExtractor sne = new SeqNumberExtractor(seqNum);
-            seqNumberStr = sne.numberAsStr;
-            seqNumberSuffix = sne.suffix;
-        }
+        licenseYear = parsedTitle.getLicenseYear();
+        licenseCode = parsedTitle.getLicenseCode();
+        seqNumberStr = parsedTitle.getSeqNumber();
+        seqNumberSuffix = parsedTitle.getSeqNumberSuffix();
+        name = parsedTitle.getName();
 
         // -------------------- Check --------------------
         // If we don't have enough information, we just do nothing
-        if (StringUtils.isBlank(licenseCode) || StringUtils.isBlank(seqNumberStr) || StringUtils.isBlank(name)) {
+        if (!parsedTitle.hasLinkingInfo()) {
             return doc;
         }
 
         // -------------------- Link to the License --------------------
         // (IPcontract document type in Studio project)
-        DocumentModel licenseDoc;
-        String licenseDocId;
-        String nxql = "SELECT * FROM IPcontract WHERE license:year = " + licenseYear;
-        nxql += " AND license:product_line_code = '" + licenseCode + "'";
-        nxql += USUAL_NXQL_LAST_FILTER;
-
-        DocumentModelList docs = session.query(nxql);
-        if (docs.size() == 0) {
-            licenseDoc = session.createDocumentModel(getIpContractRootPath(), "" + licenseYear + licenseCode + " "
-                    + licenseCode, "IPcontract");
-
-            licenseDoc.setPropertyValue("license:year", licenseYear);
-            licenseDoc.setPropertyValue("license:product_line_code", licenseCode);
-            // We don't have the product_line when extracting from a file
-            licenseDoc.setPropertyValue("license:product_line", licenseCode);
-            licenseDoc.setPropertyValue("license:has_default_product_line", true);
-
-            licenseDoc = session.createDocument(licenseDoc);
-            licenseDoc = session.saveDocument(licenseDoc);
-        } else {
-            licenseDoc = docs.get(0);
-        }
-        licenseDocId = licenseDoc.getId();
-        doc.setPropertyValue("linking:license_id", licenseDocId);
+        RelationTargetResolver resolver = getResolver();
+        String licenseDocId = resolver.getOrCreateLicense(licenseYear, licenseCode);
+        // A new License has no ArtFileNumber yet, no need to look for it. If created by another thread, it may
+        // already have ArtFileNumbers
+        boolean isNewLicense = resolver.lastWasCreated();
 
         // -------------------- Link to the ArtFileNumber --------------------
-        DocumentModel afnDoc;
         // An ArtFileNumber document has the "linking" and the "ArtFileNumber" schemas (among others)
-        nxql = "SELECT * FROM ArtFileNumber WHERE linking:license_id = '" + licenseDocId + "'";
-        nxql += " AND art_file_number:number = '" + seqNumberStr + "'";
-        nxql += USUAL_NXQL_LAST_FILTER;
-        docs = session.query(nxql);
-        if (docs.size() == 0) {
-            afnDoc = session.createDocumentModel(getArtFileNumberContainerPath(), seqNumberStr + name, "ArtFileNumber");
-
-            afnDoc.setPropertyValue("linking:license_id", licenseDocId);
-            afnDoc.setPropertyValue("art_file_number:number", seqNumberStr);
-            afnDoc.setPropertyValue("art_file_number:short_name", name);
+        String afnDocId = resolver.getOrCreateArtFileNumber(licenseDocId, seqNumberStr, name, !isNewLicense);
 
-            afnDoc = session.createDocument(afnDoc);
-            afnDoc = session.saveDocument(afnDoc);
-
-        } else {
-            afnDoc = docs.get(0);
+        // -------------------- Last Update(s), saved only if something changed --------------------
+        if (setLicensedAssetValues(doc, licenseDocId, afnDocId, inNature, seqNumberSuffix)) {
+            saveDoc();
         }
-        doc.setPropertyValue("linking:art_file_number_id", afnDoc.getId());
-
-        // -------------------- Last Update(s) --------------------
-        doc.setPropertyValue("asset:nature", inNature);
-        doc.setPropertyValue("asset:variation_letter", seqNumberSuffix);
-        doc.setPropertyValue("asset:licensing", VOC_LICENSED);
-
-        // -------------------- Ok, we're done --------------------
-        doc = session.saveDocument(doc);
-        docModifiedAndSaved = true;
         
         return doc;
     }
@@ -495,36 +585,6 @@ public class AssetRelationsBuilder {
         assetType = ASSET_TYPE.OTHER;
     }
 
-    private class SeqNumberExtractor {
-        private String numberAsStr = "";
-
-        private String suffix = "";
-
-        private SeqNumberExtractor(String inSeqNum) {
-
-            if (StringUtils.isBlank(inSeqNum)) {
-                return;
-            }
-
-            char[] chars = new char[inSeqNum.length()];
-            inSeqNum.getChars(0, inSeqNum.length(), chars, 0);
-            boolean isSuffix = false;
-            for (char c : chars) {
-                if (isSuffix) {
-                    suffix += Character.toString(c);
-                } else {
-                    if (Character.isDigit(c)) {
-                        numberAsStr += Character.toString(c);
-                    } else {
-                        isSuffix = true;
-                        suffix += Character.toString(c);
-                    }
-                }
-            }
-        }
-
-    }
-
     public int getLicenseYear() {
         return licenseYear;
     }
@@ -0,0 +1,149 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * The caches shared by all the {@link AssetRelationsBuilder}, whatever the session or the thread. Sizes and time to
+ * live can be changed in nuxeo.conf.
+ * <p>
+ * A key always starts with the repository name, so a multi-repository setup never gets the id of another repository.
+ *
+ * @since 7.4
+ */
+public class AssetRelationsCaches {
+
+    public static final String LICENSE_CACHE_SIZE_PROP = "dam.object.relations.cache.license.size";
+
+    public static final String ART_FILE_NUMBER_CACHE_SIZE_PROP = "dam.object.relations.cache.artfilenumber.size";
+
+    public static final String STYLE_NUMBER_CACHE_SIZE_PROP = "dam.object.relations.cache.stylenumber.size";
+
+    public static final String CACHE_TTL_PROP = "dam.object.relations.cache.ttl.seconds";
+
+    public static final String CACHE_NOT_FOUND_TTL_PROP = "dam.object.relations.cache.notfound.ttl.seconds";
+
+    /**
+     * Folder of the plugin in the data directory of the server, for what is kept on disk (checkpoints, cached
+     * presentations, ...)
+     */
+    public static final String DATA_DIRECTORY_NAME = "dam-object-relations";
+
+    public static final RelationTargetCache LICENSES = new RelationTargetCache("IPcontract", getIntProperty(
+            LICENSE_CACHE_SIZE_PROP, 2000), getIntProperty(CACHE_TTL_PROP, 600) * 1000L, getIntProperty(
+            CACHE_NOT_FOUND_TTL_PROP, 30) * 1000L);
+
+    public static final RelationTargetCache ART_FILE_NUMBERS = new RelationTargetCache("ArtFileNumber",
+            getIntProperty(ART_FILE_NUMBER_CACHE_SIZE_PROP, 20000), getIntProperty(CACHE_TTL_PROP, 600) * 1000L,
+            getIntProperty(CACHE_NOT_FOUND_TTL_PROP, 30) * 1000L);
+
+    public static final RelationTargetCache STYLE_NUMBERS = new RelationTargetCache("StyleNumber", getIntProperty(
+            STYLE_NUMBER_CACHE_SIZE_PROP, 20000), getIntProperty(CACHE_TTL_PROP, 600) * 1000L, getIntProperty(
+            CACHE_NOT_FOUND_TTL_PROP, 30) * 1000L);
+
+    private AssetRelationsCaches() {
+    }
+
+    protected static int getIntProperty(String inName, int inDefault) {
+
+        String value = Framework.getProperty(inName);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                // Use the default value
+            }
+        }
+        return inDefault;
+    }
+
+    public static String licenseKey(String inRepository, int inYear, String inProductLineCode) {
+        return RelationTargetCache.buildKey(inRepository, inYear, inProductLineCode);
+    }
+
+    public static String artFileNumberKey(String inRepository, String inLicenseId, String inNumber) {
+        return RelationTargetCache.buildKey(inRepository, inLicenseId, inNumber);
+    }
+
+    public static String styleNumberKey(String inRepository, String inDepartment, String inNumber, String inShortName) {
+        return RelationTargetCache.buildKey(inRepository, inDepartment, inNumber, inShortName);
+    }
+
+    public static String getStatsAsString() {
+        return LICENSES.getStatsAsString() + "; " + ART_FILE_NUMBERS.getStatsAsString() + "; "
+                + STYLE_NUMBERS.getStatsAsString();
+    }
+
+    /**
+     * @return the cache of the <code>inDocType</code> relation targets, or null if it is not a relation target
+     */
+    public static RelationTargetCache getCache(String inDocType) {
+
+        switch (inDocType) {
+        case "IPcontract":
+            return LICENSES;
+
+        case "ArtFileNumber":
+            return ART_FILE_NUMBERS;
+
+        case "StyleNumber":
+            return STYLE_NUMBERS;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the key of the <code>inDoc</code> relation target, built from its properties, or null if it is not a
+     *         relation target or if a value is missing
+     */
+    public static String keyOf(DocumentModel inDoc) {
+
+        String repo = inDoc.getRepositoryName();
+        switch (inDoc.getType()) {
+        case "IPcontract":
+            Number year = (Number) inDoc.getPropertyValue("license:year");
+            String code = (String) inDoc.getPropertyValue("license:product_line_code");
+            if (year != null && code != null) {
+                return licenseKey(repo, year.intValue(), code);
+            }
+            break;
+
+        case "ArtFileNumber":
+            String licenseId = (String) inDoc.getPropertyValue("linking:license_id");
+            String afnNumber = (String) inDoc.getPropertyValue("art_file_number:number");
+            if (licenseId != null && afnNumber != null) {
+                return artFileNumberKey(repo, licenseId, afnNumber);
+            }
+            break;
+
+        case "StyleNumber":
+            String department = (String) inDoc.getPropertyValue("style_number:department");
+            String styleNumber = (String) inDoc.getPropertyValue("style_number:number");
+            String shortName = (String) inDoc.getPropertyValue("style_number:short_name");
+            if (department != null && styleNumber != null && shortName != null) {
+                return styleNumberKey(repo, department, styleNumber, shortName);
+            }
+            break;
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.nuxeo.dam.object.relations.AssetRelationsBuilder.ASSET_TYPE;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Timers and counters of the relation building, per stage: Title parsing, lookup and creation of each kind of target
+ * (License, ArtFileNumber, StyleNumber), save of the asset, and vocabulary checks. Plus the number of assets per
+ * {@link ASSET_TYPE} and the hit ratio of the {@link AssetRelationsCaches}.
+ * <p>
+ * Published in the Nuxeo metrics registry (<code>nuxeo.dam.relations.*</code>), and in JMX (see
+ * {@link AssetRelationsMetricsComponent}).
+ *
+ * @since 7.4
+ */
+public class AssetRelationsMetrics implements AssetRelationsMetricsMXBean {
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected static final String PREFIX = "nuxeo.dam.relations";
+
+    /**
+     * Time to parse a title. Only one title in {@link #PARSE_SAMPLING} is timed (see {@link #timeParse()}): Parsing is
+     * cheaper than updating a timer. {@link #PARSED} counts them all.
+     */
+    public static final Timer PARSE = registry.timer(MetricRegistry.name(PREFIX, "parse"));
+
+    public static final Counter PARSED = registry.counter(MetricRegistry.name(PREFIX, "parsed"));
+
+    public static final int PARSE_SAMPLING = 64;
+
+    public static final Timer SAVE = registry.timer(MetricRegistry.name(PREFIX, "save"));
+
+    public static final Timer DIRECTORY = registry.timer(MetricRegistry.name(PREFIX, "directory"));
+
+    protected static final RelationTargetCache[] CACHES = { AssetRelationsCaches.LICENSES,
+            AssetRelationsCaches.ART_FILE_NUMBERS, AssetRelationsCaches.STYLE_NUMBERS };
+
+    protected static final Map<ASSET_TYPE, Counter> assetCounters = new EnumMap<>(ASSET_TYPE.class);
+
+    static {
+        for (ASSET_TYPE type : ASSET_TYPE.values()) {
+            assetCounters.put(type, registry.counter(MetricRegistry.name(PREFIX, "assets", type.name().toLowerCase())));
+        }
+
+        for (final RelationTargetCache cache : CACHES) {
+            String name = MetricRegistry.name(PREFIX, "cache", cache.getName(), "hitRatio");
+            // Already there after a hot reload
+            registry.remove(name);
+            registry.register(name, new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return getHitRatio(cache);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param inTargetType the name of the cache of the target (see {@link RelationTargetCache#getName()})
+     */
+    public static Timer lookup(String inTargetType) {
+        return registry.timer(MetricRegistry.name(PREFIX, "lookup", inTargetType));
+    }
+
+    public static Timer create(String inTargetType) {
+        return registry.timer(MetricRegistry.name(PREFIX, "create", inTargetType));
+    }
+
+    /**
+     * @return the context to stop once the title is parsed, or null if this title is not sampled
+     */
+    public static Timer.Context timeParse() {
+        return ThreadLocalRandom.current().nextInt(PARSE_SAMPLING) == 0 ? PARSE.time() : null;
+    }
+
+    public static void countAsset(ASSET_TYPE inType) {
+        assetCounters.get(inType).inc();
+    }
+
+    public static void countAssets(ASSET_TYPE inType, int inCount) {
+        assetCounters.get(inType).inc(inCount);
+    }
+
+    /**
+     * @return the part of the <code>get</code> calls answered by the cache ("not found" included), from 0 to 1
+     */
+    public static double getHitRatio(RelationTargetCache inCache) {
+
+        long hits = inCache.getHitCount() + inCache.getNotFoundHitCount();
+        long total = hits + inCache.getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    // -------------------- JMX --------------------
+    @Override
+    public double getLicenseCacheHitRatio() {
+        return getHitRatio(AssetRelationsCaches.LICENSES);
+    }
+
+    @Override
+    public double getArtFileNumberCacheHitRatio() {
+        return getHitRatio(AssetRelationsCaches.ART_FILE_NUMBERS);
+    }
+
+    @Override
+    public double getStyleNumberCacheHitRatio() {
+        return getHitRatio(AssetRelationsCaches.STYLE_NUMBERS);
+    }
+
+    @Override
+    public String getCacheStats() {
+        return AssetRelationsCaches.getStatsAsString();
+    }
+
+    @Override
+    public long getCompositionCount() {
+        return assetCounters.get(ASSET_TYPE.COMPOSITION).getCount();
+    }
+
+    @Override
+    public long getCompositionResourceCount() {
+        return assetCounters.get(ASSET_TYPE.COMPOSITION_RESOURCE).getCount();
+    }
+
+    @Override
+    public long getOtherAssetCount() {
+        return assetCounters.get(ASSET_TYPE.OTHER).getCount();
+    }
+
+    @Override
+    public String getTimings() {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("parsed: ").append(PARSED.getCount()).append(" titles");
+        append(sb, "parse (sampled)", PARSE);
+        for (RelationTargetCache cache : CACHES) {
+            append(sb, "lookup " + cache.getName(), lookup(cache.getName()));
+            append(sb, "create " + cache.getName(), create(cache.getName()));
+        }
+        append(sb, "save", SAVE);
+        append(sb, "directory", DIRECTORY);
+        return sb.toString();
+    }
+
+    // Durations are in nanoseconds in the snapshot
+    protected static void append(StringBuilder inSb, String inStage, Timer inTimer) {
+
+        Snapshot snapshot = inTimer.getSnapshot();
+        if (inSb.length() > 0) {
+            inSb.append("; ");
+        }
+        inSb.append(inStage).append(": ").append(inTimer.getCount()).append(" calls, mean ");
+        inSb.append(String.format("%.2f", snapshot.getMean() / 1000000)).append(" ms, p99 ");
+        inSb.append(String.format("%.2f", snapshot.get99thPercentile() / 1000000)).append(" ms");
+    }
+
+}
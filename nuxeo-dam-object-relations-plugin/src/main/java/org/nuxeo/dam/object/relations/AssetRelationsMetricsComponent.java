@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Registers the {@link AssetRelationsMetricsMXBean} in the platform MBean server.
+ *
+ * @since 7.4
+ */
+public class AssetRelationsMetricsComponent extends DefaultComponent {
+
+    private static final Log log = LogFactory.getLog(AssetRelationsMetricsComponent.class);
+
+    public static final String OBJECT_NAME = "org.nuxeo.dam:type=AssetRelationsMetrics";
+
+    @Override
+    public void activate(ComponentContext context) {
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new AssetRelationsMetrics(), name);
+            }
+        } catch (JMException e) {
+            log.warn("Cannot register " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) {
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Cannot unregister " + OBJECT_NAME, e);
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+/**
+ * JMX view of the {@link AssetRelationsMetrics}.
+ *
+ * @since 7.4
+ */
+public interface AssetRelationsMetricsMXBean {
+
+    double getLicenseCacheHitRatio();
+
+    double getArtFileNumberCacheHitRatio();
+
+    double getStyleNumberCacheHitRatio();
+
+    String getCacheStats();
+
+    long getCompositionCount();
+
+    long getCompositionResourceCount();
+
+    long getOtherAssetCount();
+
+    /**
+     * @return count, mean and 99th percentile duration of each stage
+     */
+    String getTimings();
+
+}
@@ -0,0 +1,314 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+/**
+ * Parses the title of an asset, following the naming convention used by {@link AssetRelationsBuilder}. Examples:
+ * <ul>
+ * <li>"15BTMN002B King Of Bats cmp.psd": Licensed composition. Year 15, license code BTMN, sequence number 002, suffix
+ * B, name "King Of Bats"</li>
+ * <li>"15BTMN002 King Of Bats.jpg": Licensed, not a composition</li>
+ * <li>"GR125 basic crew with side tie COMP.psd": Non licensed composition (a "composition resource"). Department GR,
+ * sequence number 125, name "basic crew with side tie"</li>
+ * </ul>
+ * The title is read only once, char by char. Nothing is thrown, nothing is modified: the result is stored in a
+ * {@link ParsedTitle}, that can be reused from one call to another. It only holds offsets in the title, a String is
+ * created only when a getter is called.
+ *
+ * @since 7.4
+ */
+public class AssetTitleParser {
+
+    // Minimum 2 numbers, 4 license code, a dot and a file extension
+    public static final int MIN_TITLE_LENGTH = 8;
+
+    protected static final int LICENSE_CODE_START = 2;
+
+    protected static final int LICENSE_CODE_END = 6;
+
+    // See AssetRelationsBuilder#COMPOSITION_VALUES
+    protected static final String COMP_MARKER = " comp.";
+
+    protected static final String CMP_MARKER = " cmp.";
+
+    // A composition resource may have a second " comp" before the marker (handled by the first implementation)
+    protected static final String COMP_WORD = " comp";
+
+    private AssetTitleParser() {
+    }
+
+    /**
+     * Parses <code>inTitle</code> and stores the values in <code>outResult</code> (which is reset first).
+     *
+     * @return false if the title is null or too short to follow the naming convention
+     */
+    public static boolean parse(String inTitle, ParsedTitle outResult) {
+
+        outResult.reset(inTitle);
+
+        if (inTitle == null || inTitle.length() < MIN_TITLE_LENGTH) {
+            return false;
+        }
+
+        int len = inTitle.length();
+        int lastDot = -1;
+        // First " comp." and first " cmp.", and the " comp" word found before each of them, if any
+        int compPos = -1, compCut = -1;
+        int cmpPos = -1, cmpCut = -1;
+        int lastCompWord = -1, prevCompWord = -1;
+        // Non licensed: <department><number><suffix> <name>
+        int firstSpace = -1, firstDigit = -1, firstNonDigitAfterDigit = -1;
+        // Licensed: <year><code><number><suffix> <name>
+        int firstSpaceAfterCode = -1, firstNonDigitAfterCode = -1;
+
+        for (int i = 0; i < len; i++) {
+            char c = inTitle.charAt(i);
+            boolean isDigit = Character.isDigit(c);
+
+            if (firstSpace < 0) {
+                if (isDigit) {
+                    if (firstDigit < 0) {
+                        firstDigit = i;
+                    }
+                } else if (firstDigit >= 0 && firstNonDigitAfterDigit < 0) {
+                    firstNonDigitAfterDigit = i;
+                }
+            }
+            if (i >= LICENSE_CODE_END && !isDigit && firstNonDigitAfterCode < 0) {
+                firstNonDigitAfterCode = i;
+            }
+
+            switch (c) {
+            case ' ':
+                if (firstSpace < 0) {
+                    firstSpace = i;
+                }
+                if (i >= LICENSE_CODE_END && firstSpaceAfterCode < 0) {
+                    firstSpaceAfterCode = i;
+                }
+                break;
+
+            case 'p':
+            case 'P':
+                // Only words not starting the title are relevant
+                if (i >= 5 && inTitle.regionMatches(true, i - 4, COMP_WORD, 0, 5)) {
+                    prevCompWord = lastCompWord;
+                    lastCompWord = i - 4;
+                }
+                break;
+
+            case '.':
+                lastDot = i;
+                if (compPos < 0 && i >= 5 && inTitle.regionMatches(true, i - 5, COMP_MARKER, 0, 6)) {
+                    compPos = i - 5;
+                    // lastCompWord is the one of the marker itself
+                    compCut = prevCompWord;
+                }
+                if (cmpPos < 0 && i >= 4 && inTitle.regionMatches(true, i - 4, CMP_MARKER, 0, 5)) {
+                    cmpPos = i - 4;
+                    cmpCut = lastCompWord;
+                }
+                break;
+            }
+        }
+
+        outResult.parsed = true;
+        if (lastDot <= 0) {
+            return true;
+        }
+        outResult.extensionStart = lastDot + 1;
+        outResult.extensionEnd = len;
+
+        // Starts with 2 digits => licensed. IMPORTANT: We don't handle a start with "00"
+        if (lastDot >= 2 && Character.isDigit(inTitle.charAt(0)) && Character.isDigit(inTitle.charAt(1))) {
+            outResult.licenseYear = Character.digit(inTitle.charAt(0), 10) * 10
+                    + Character.digit(inTitle.charAt(1), 10);
+            outResult.licensed = outResult.licenseYear > 0;
+        }
+
+        // The title minus the file extension and the composition suffix
+        int stemEnd = lastDot;
+        int secondCut = -1;
+        if (compPos > 0) {
+            outResult.composition = true;
+            stemEnd = compPos;
+            secondCut = compCut;
+        } else if (cmpPos > 0) {
+            outResult.composition = true;
+            stemEnd = cmpPos;
+            secondCut = cmpCut;
+        }
+
+        if (outResult.licensed) {
+            outResult.licenseCodeStart = LICENSE_CODE_START;
+            outResult.licenseCodeEnd = LICENSE_CODE_END;
+            // The sequence number is followed by a space, then the name
+            if (firstSpaceAfterCode > LICENSE_CODE_END && firstSpaceAfterCode < stemEnd) {
+                outResult.setSeqNumber(LICENSE_CODE_END, firstNonDigitAfterCode, firstSpaceAfterCode);
+                outResult.nameStart = firstSpaceAfterCode + 1;
+                outResult.nameEnd = stemEnd;
+            }
+        } else if (outResult.composition) {
+            if (secondCut > 0) {
+                stemEnd = secondCut;
+            }
+            if (firstSpace > 0 && firstSpace < stemEnd) {
+                // First 1-n letters are the department
+                if (firstDigit < 0) {
+                    outResult.departmentEnd = firstSpace;
+                } else {
+                    outResult.departmentEnd = firstDigit;
+                    outResult.setSeqNumber(firstDigit, firstNonDigitAfterDigit, firstSpace);
+                }
+                outResult.nameStart = firstSpace + 1;
+                outResult.nameEnd = stemEnd;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Values extracted by {@link AssetTitleParser#parse(String, ParsedTitle)}. Getters return an empty string (never
+     * null) when there is no value.
+     */
+    public static class ParsedTitle {
+
+        protected String title;
+
+        protected boolean parsed;
+
+        protected boolean licensed;
+
+        protected boolean composition;
+
+        protected int licenseYear;
+
+        protected int extensionStart, extensionEnd;
+
+        protected int licenseCodeStart, licenseCodeEnd;
+
+        protected int seqNumberStart, seqNumberEnd;
+
+        protected int suffixStart, suffixEnd;
+
+        protected int departmentStart, departmentEnd;
+
+        protected int nameStart, nameEnd;
+
+        protected void reset(String inTitle) {
+            title = inTitle;
+            parsed = false;
+            licensed = false;
+            composition = false;
+            licenseYear = 0;
+            extensionStart = extensionEnd = 0;
+            licenseCodeStart = licenseCodeEnd = 0;
+            seqNumberStart = seqNumberEnd = 0;
+            suffixStart = suffixEnd = 0;
+            departmentStart = departmentEnd = 0;
+            nameStart = nameEnd = 0;
+        }
+
+        // The number is as long as the character is a digit, the suffix is all the rest
+        protected void setSeqNumber(int inStart, int inFirstNonDigit, int inEnd) {
+            seqNumberStart = inStart;
+            if (inFirstNonDigit < 0 || inFirstNonDigit > inEnd) {
+                inFirstNonDigit = inEnd;
+            }
+            seqNumberEnd = inFirstNonDigit;
+            suffixStart = inFirstNonDigit;
+            suffixEnd = inEnd;
+        }
+
+        protected String get(int inStart, int inEnd) {
+            return inEnd > inStart ? title.substring(inStart, inEnd) : "";
+        }
+
+        protected boolean isBlank(int inStart, int inEnd) {
+            for (int i = inStart; i < inEnd; i++) {
+                if (!Character.isWhitespace(title.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the title was long enough to be parsed
+         */
+        public boolean isParsed() {
+            return parsed;
+        }
+
+        public boolean isLicensed() {
+            return licensed;
+        }
+
+        public boolean isComposition() {
+            return composition;
+        }
+
+        /**
+         * @return true if the title holds everything needed to link the asset (a license code, or a department, plus
+         *         a sequence number and a name)
+         */
+        public boolean hasLinkingInfo() {
+
+            if (isBlank(seqNumberStart, seqNumberEnd) || isBlank(nameStart, nameEnd)) {
+                return false;
+            }
+            if (licensed) {
+                return !isBlank(licenseCodeStart, licenseCodeEnd);
+            }
+            return composition && !isBlank(departmentStart, departmentEnd);
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public int getLicenseYear() {
+            return licenseYear;
+        }
+
+        public String getExtension() {
+            return get(extensionStart, extensionEnd);
+        }
+
+        public String getLicenseCode() {
+            return get(licenseCodeStart, licenseCodeEnd);
+        }
+
+        public String getSeqNumber() {
+            return get(seqNumberStart, seqNumberEnd);
+        }
+
+        public String getSeqNumberSuffix() {
+            return get(suffixStart, suffixEnd);
+        }
+
+        public String getDepartment() {
+            return get(departmentStart, departmentEnd);
+        }
+
+        public String getName() {
+            return get(nameStart, nameEnd);
+        }
+    }
+
+}
@@ -0,0 +1,423 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * Builds the relations of a page of assets at once. Same result as calling {@link AssetRelationsBuilder} on each
+ * document, but:
+ * <ul>
+ * <li>All the titles are parsed first, and the distinct License, ArtFileNumber and StyleNumber keys are collected</li>
+ * <li>Each kind of key is resolved with one <code>IN (...)</code> query for the whole page (after checking
+ * {@link AssetRelationsCaches})</li>
+ * <li>Missing targets are created in one batch (one <code>session.save()</code>), see
+ * {@link RelationTargetResolver}</li>
+ * <li>Then the links are applied</li>
+ * </ul>
+ * So, for a page of 1000 pictures, we have at most 3 queries instead of up to 3000.
+ *
+ * @since 7.4
+ */
+public class BulkAssetRelationsBuilder {
+
+    private static final Log log = LogFactory.getLog(BulkAssetRelationsBuilder.class);
+
+    protected CoreSession session;
+
+    protected String repository;
+
+    // Creates the missing targets (the lookup is done here, for the whole page)
+    protected RelationTargetResolver resolver;
+
+    // Reused from one page to another
+    protected List<AssetTitleParser.ParsedTitle> parsedTitles = new ArrayList<AssetTitleParser.ParsedTitle>();
+
+    protected int queryCount = 0;
+
+    protected int createdCount = 0;
+
+    public BulkAssetRelationsBuilder(CoreSession inSession) {
+        session = inSession;
+        repository = inSession.getRepositoryName();
+        resolver = new RelationTargetResolver(inSession);
+    }
+
+    /**
+     * Builds the relations of <code>inDocs</code>. Documents that are not Pictures or whose title does not follow the
+     * naming convention are ignored.
+     *
+     * @return the number of documents modified and saved
+     */
+    public int run(List<DocumentModel> inDocs) {
+
+        // -------------------- Parse all the titles --------------------
+        List<Item> licensedItems = new ArrayList<Item>();
+        List<Item> styleItems = new ArrayList<Item>();
+        int idx = 0;
+        for (DocumentModel doc : inDocs) {
+            if (!doc.getType().equals("Picture")) {
+                continue;
+            }
+
+            if (idx == parsedTitles.size()) {
+                parsedTitles.add(new AssetTitleParser.ParsedTitle());
+            }
+            AssetTitleParser.ParsedTitle parsed = parsedTitles.get(idx++);
+            Timer.Context parseTimer = AssetRelationsMetrics.timeParse();
+            try {
+                if (!AssetTitleParser.parse((String) doc.getPropertyValue("dc:title"), parsed)) {
+                    continue;
+                }
+            } finally {
+                if (parseTimer != null) {
+                    parseTimer.stop();
+                }
+            }
+            AssetRelationsMetrics.countAsset(getAssetType(parsed));
+            if (!parsed.hasLinkingInfo()) {
+                continue;
+            }
+
+            Item item = new Item(doc, parsed);
+            if (parsed.isLicensed()) {
+                item.licenseKey = AssetRelationsCaches.licenseKey(repository, item.licenseYear, item.licenseCode);
+                licensedItems.add(item);
+            } else {
+                item.department = parsed.getDepartment();
+                item.targetKey = AssetRelationsCaches.styleNumberKey(repository, item.department, item.seqNumber,
+                        item.name);
+                styleItems.add(item);
+            }
+        }
+        // Once per page, not per title
+        AssetRelationsMetrics.PARSED.inc(idx);
+
+        // -------------------- Resolve/create the targets --------------------
+        Set<String> newLicenseIds = new HashSet<String>();
+        Map<String, String> licenseIds = resolveLicenses(licensedItems, newLicenseIds);
+        for (Item item : licensedItems) {
+            item.licenseId = licenseIds.get(item.licenseKey);
+            item.targetKey = AssetRelationsCaches.artFileNumberKey(repository, item.licenseId, item.seqNumber);
+        }
+        Map<String, String> afnIds = resolveArtFileNumbers(licensedItems, newLicenseIds);
+        Map<String, String> styleIds = resolveStyleNumbers(styleItems);
+
+        if (createdCount > 0) {
+            session.save();
+        }
+
+        // -------------------- Apply the links --------------------
+        int countSaved = 0;
+        for (Item item : licensedItems) {
+            if (AssetRelationsBuilder.setLicensedAssetValues(item.doc, item.licenseId, afnIds.get(item.targetKey),
+                    item.nature, item.suffix)) {
+                save(item.doc);
+                countSaved += 1;
+            }
+        }
+        for (Item item : styleItems) {
+            if (AssetRelationsBuilder.setCompositionResourceValues(item.doc, styleIds.get(item.targetKey),
+                    item.suffix)) {
+                save(item.doc);
+                countSaved += 1;
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Page of " + inDocs.size() + " documents: " + queryCount + " queries, " + createdCount
+                    + " targets created, " + countSaved + " documents saved");
+        }
+        return countSaved;
+    }
+
+    /*
+     * Returns the ids found in the cache. Adds to inMissing the items whose key is not cached (the first one for each
+     * key), and to inKnownNotFound the keys cached as not found.
+     */
+    protected Map<String, String> getCachedIds(RelationTargetCache inCache, List<Item> inItems, boolean inLicense,
+            Map<String, Item> inMissing, Set<String> inKnownNotFound) {
+
+        Map<String, String> ids = new HashMap<String, String>();
+        for (Item item : inItems) {
+            String key = inLicense ? item.licenseKey : item.targetKey;
+            if (ids.containsKey(key) || inMissing.containsKey(key)) {
+                continue;
+            }
+            String id = inCache.get(key);
+            if (id == null || id == RelationTargetCache.NOT_FOUND) {
+                inMissing.put(key, item);
+                if (id != null) {
+                    inKnownNotFound.add(key);
+                }
+            } else {
+                ids.put(key, id);
+            }
+        }
+        return ids;
+    }
+
+    protected Map<String, String> resolveLicenses(List<Item> inItems, Set<String> outNewLicenseIds) {
+
+        Map<String, Item> missing = new LinkedHashMap<String, Item>();
+        Set<String> notFound = new HashSet<String>();
+        Map<String, String> ids = getCachedIds(AssetRelationsCaches.LICENSES, inItems, true, missing, notFound);
+
+        Set<String> codes = new HashSet<String>();
+        for (Map.Entry<String, Item> entry : missing.entrySet()) {
+            if (!notFound.contains(entry.getKey())) {
+                codes.add(entry.getValue().licenseCode);
+            }
+        }
+        if (!codes.isEmpty()) {
+            // We query on the codes only, there are just a few years per code
+            NxqlBuilder query = NxqlBuilder.select(NXQL.ECM_UUID, "license:year", "license:product_line_code").from(
+                    "IPcontract").in("license:product_line_code", codes).live();
+            for (Map<String, Serializable> row : fetch(query, AssetRelationsCaches.LICENSES)) {
+                String id = (String) row.get(NXQL.ECM_UUID);
+                Number year = (Number) row.get("license:year");
+                String code = (String) row.get("license:product_line_code");
+                if (year == null || code == null) {
+                    continue;
+                }
+                String key = AssetRelationsCaches.licenseKey(repository, year.intValue(), code);
+                if (missing.containsKey(key) && !ids.containsKey(key)) {
+                    ids.put(key, id);
+                    AssetRelationsCaches.LICENSES.put(key, id);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Item> entry : missing.entrySet()) {
+            if (!ids.containsKey(entry.getKey())) {
+                Item item = entry.getValue();
+                String id = resolver.createLicenseOnce(item.licenseYear, item.licenseCode);
+                ids.put(entry.getKey(), id);
+                if (resolver.lastWasCreated()) {
+                    outNewLicenseIds.add(id);
+                    createdCount += 1;
+                }
+            }
+        }
+
+        return ids;
+    }
+
+    protected Map<String, String> resolveArtFileNumbers(List<Item> inItems, Set<String> inNewLicenseIds) {
+
+        Map<String, Item> missing = new LinkedHashMap<String, Item>();
+        Set<String> notFound = new HashSet<String>();
+        Map<String, String> ids = getCachedIds(AssetRelationsCaches.ART_FILE_NUMBERS, inItems, false, missing,
+                notFound);
+
+        // A new License has no ArtFileNumber yet, no need to look for it
+        Set<String> licenseIds = new HashSet<String>();
+        Set<String> numbers = new HashSet<String>();
+        for (Map.Entry<String, Item> entry : missing.entrySet()) {
+            Item item = entry.getValue();
+            if (!notFound.contains(entry.getKey()) && !inNewLicenseIds.contains(item.licenseId)) {
+                licenseIds.add(item.licenseId);
+                numbers.add(item.seqNumber);
+            }
+        }
+        if (!licenseIds.isEmpty()) {
+            NxqlBuilder query = NxqlBuilder.select(NXQL.ECM_UUID, "linking:license_id", "art_file_number:number").from(
+                    "ArtFileNumber").in("linking:license_id", licenseIds).in("art_file_number:number", numbers).live();
+            for (Map<String, Serializable> row : fetch(query, AssetRelationsCaches.ART_FILE_NUMBERS)) {
+                String id = (String) row.get(NXQL.ECM_UUID);
+                String key = AssetRelationsCaches.artFileNumberKey(repository, (String) row.get("linking:license_id"),
+                        (String) row.get("art_file_number:number"));
+                if (missing.containsKey(key) && !ids.containsKey(key)) {
+                    ids.put(key, id);
+                    AssetRelationsCaches.ART_FILE_NUMBERS.put(key, id);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Item> entry : missing.entrySet()) {
+            if (!ids.containsKey(entry.getKey())) {
+                Item item = entry.getValue();
+                ids.put(entry.getKey(), resolver.createArtFileNumberOnce(item.licenseId, item.seqNumber, item.name));
+                if (resolver.lastWasCreated()) {
+                    createdCount += 1;
+                }
+            }
+        }
+
+        return ids;
+    }
+
+    protected Map<String, String> resolveStyleNumbers(List<Item> inItems) {
+
+        Map<String, Item> missing = new LinkedHashMap<String, Item>();
+        Set<String> notFound = new HashSet<String>();
+        Map<String, String> ids = getCachedIds(AssetRelationsCaches.STYLE_NUMBERS, inItems, false, missing, notFound);
+
+        // Same as AssetRelationsBuilder#checkDepartmentValueInDirectory, for all the departments of the page at once
+        Set<String> vocValues = new HashSet<String>();
+        for (Item item : inItems) {
+            vocValues.add(item.department.replace("/", "-"));
+        }
+        Timer.Context timer = AssetRelationsMetrics.DIRECTORY.time();
+        try {
+            AssetRelationsBuilder.departmentValues.ensureEntries(vocValues);
+        } finally {
+            timer.stop();
+        }
+
+        Set<String> departments = new HashSet<String>();
+        Set<String> numbers = new HashSet<String>();
+        Set<String> names = new HashSet<String>();
+        for (Map.Entry<String, Item> entry : missing.entrySet()) {
+            Item item = entry.getValue();
+            if (!notFound.contains(entry.getKey())) {
+                departments.add(item.department);
+                numbers.add(item.seqNumber);
+                names.add(item.name);
+            }
+        }
+        if (!departments.isEmpty()) {
+            NxqlBuilder query = NxqlBuilder.select(NXQL.ECM_UUID, "style_number:department", "style_number:number",
+                    "style_number:short_name").from("StyleNumber").in("style_number:department", departments).in(
+                    "style_number:number", numbers).in("style_number:short_name", names).live();
+            for (Map<String, Serializable> row : fetch(query, AssetRelationsCaches.STYLE_NUMBERS)) {
+                String id = (String) row.get(NXQL.ECM_UUID);
+                String key = AssetRelationsCaches.styleNumberKey(repository,
+                        (String) row.get("style_number:department"), (String) row.get("style_number:number"),
+                        (String) row.get("style_number:short_name"));
+                if (missing.containsKey(key) && !ids.containsKey(key)) {
+                    ids.put(key, id);
+                    AssetRelationsCaches.STYLE_NUMBERS.put(key, id);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Item> entry : missing.entrySet()) {
+            if (!ids.containsKey(entry.getKey())) {
+                Item item = entry.getValue();
+                ids.put(entry.getKey(), resolver.createStyleNumberOnce(item.department, item.seqNumber, item.name));
+                if (resolver.lastWasCreated()) {
+                    createdCount += 1;
+                }
+            }
+        }
+
+        return ids;
+    }
+
+    // Projection: only the id and the key of the targets are read
+    protected List<Map<String, Serializable>> fetch(NxqlBuilder inQuery, RelationTargetCache inCache) {
+
+        queryCount += 1;
+        Timer.Context timer = AssetRelationsMetrics.lookup(inCache.getName()).time();
+        try {
+            return inQuery.fetch(session);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    protected void save(DocumentModel inDoc) {
+
+        Timer.Context timer = AssetRelationsMetrics.SAVE.time();
+        AssetRelationsBuilder.markAsRelationsUpdate(inDoc);
+        try {
+            session.saveDocument(inDoc);
+        } finally {
+            AssetRelationsBuilder.unmarkAsRelationsUpdate(inDoc);
+            timer.stop();
+        }
+    }
+
+    // Same types as AssetRelationsBuilder
+    protected static AssetRelationsBuilder.ASSET_TYPE getAssetType(AssetTitleParser.ParsedTitle inParsed) {
+
+        if (!inParsed.isComposition()) {
+            return AssetRelationsBuilder.ASSET_TYPE.OTHER;
+        }
+        return inParsed.isLicensed() ? AssetRelationsBuilder.ASSET_TYPE.COMPOSITION
+                : AssetRelationsBuilder.ASSET_TYPE.COMPOSITION_RESOURCE;
+    }
+
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    public int getCreatedCount() {
+        return createdCount;
+    }
+
+    /*
+     * The values of one document. Strings are extracted from the ParsedTitle, which is reused for the next page.
+     */
+    protected static class Item {
+
+        protected final DocumentModel doc;
+
+        protected final int licenseYear;
+
+        protected final String licenseCode;
+
+        protected final String seqNumber;
+
+        protected final String suffix;
+
+        protected final String name;
+
+        protected final String nature;
+
+        protected String department;
+
+        protected String licenseKey;
+
+        protected String licenseId;
+
+        // ArtFileNumber or StyleNumber
+        protected String targetKey;
+
+        protected Item(DocumentModel inDoc, AssetTitleParser.ParsedTitle inParsed) {
+            doc = inDoc;
+            licenseYear = inParsed.getLicenseYear();
+            licenseCode = inParsed.getLicenseCode();
+            seqNumber = inParsed.getSeqNumber();
+            suffix = inParsed.getSeqNumberSuffix();
+            name = inParsed.getName();
+            if (inParsed.isLicensed()) {
+                nature = inParsed.isComposition() ? AssetRelationsBuilder.VOC_COMPOSITION
+                        : AssetRelationsBuilder.VOC_LICENSED_ART_RESOURCE;
+            } else {
+                nature = AssetRelationsBuilder.VOC_COMPOSITION_RESOURCE;
+            }
+        }
+    }
+
+}
@@ -17,11 +17,6 @@
 
 package org.nuxeo.dam.object.relations;
 
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import org.apache.commons.lang.StringUtils;
 import org.nuxeo.ecm.automation.core.Constants;
 import org.nuxeo.ecm.automation.core.annotations.Context;
@@ -30,13 +25,12 @@ import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.schema.SchemaManager;
-import org.nuxeo.ecm.core.schema.types.Schema;
-import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.runtime.api.Framework;
 
 /**
- * 
+ * Missing vocabulary values are created all at once, at the end of the operation (see
+ * {@link VocabularyEnsureService}). Pass a list of documents to handle a whole import page in one call.
  */
 @Operation(id = CheckAssetDataOp.ID, category = Constants.CAT_DOCUMENT, label = "Demo: Check Asset Data", description = "Create vocabulary entry if needed, etc.")
 public class CheckAssetDataOp {
@@ -46,14 +40,6 @@ public class CheckAssetDataOp {
     protected static final String[] FIELDS = { "asset:body_type", "asset:body_color", "asset:print_location" };
 
     protected static final String[] VOCS = { "BodyType", "BodyColor", "PrintLocation" };
-    
-    protected static boolean[] VOCS_HAS_PARENT = {false, false, false};
-
-    protected static final int FIELDS_MAX = FIELDS.length - 1;
-        
-    protected static DirectoryService directoryService = null;
-    
-    List<String> vocValues;
 
     @Context
     protected CoreSession session;
@@ -64,42 +50,36 @@ public class CheckAssetDataOp {
     @OperationMethod
     public DocumentModel run(DocumentModel inDoc) {
 
-        String value;
-        
-        if(directoryService == null) {
-            directoryService = Framework.getService(DirectoryService.class);
-
-            SchemaManager schemaManager = Framework.getService(SchemaManager.class);
-            for(int i = 0; i < FIELDS_MAX; ++i) {
-                String dirSchema = directoryService.getDirectorySchema(VOCS[i]);
-                Schema schema = schemaManager.getSchema(dirSchema);
-                VOCS_HAS_PARENT[i] = schema.hasField("parent");
-            }
+        VocabularyEnsureService vocService = Framework.getService(VocabularyEnsureService.class);
+
+        checkVocabularies(inDoc, vocService);
+        vocService.flush();
+
+        return inDoc;
+    }
+
+    @OperationMethod
+    public DocumentModelList run(DocumentModelList inDocs) {
+
+        VocabularyEnsureService vocService = Framework.getService(VocabularyEnsureService.class);
+
+        for (DocumentModel doc : inDocs) {
+            checkVocabularies(doc, vocService);
         }
+        vocService.flush();
+
+        return inDocs;
+    }
 
-        // Handle the vocabularies
-        for(int i = 0; i < FIELDS_MAX; ++i) {
+    protected void checkVocabularies(DocumentModel inDoc, VocabularyEnsureService inVocService) {
+
+        String value;
+        for (int i = 0; i < FIELDS.length; ++i) {
             value = (String) inDoc.getPropertyValue(FIELDS[i]);
-            if(StringUtils.isNotBlank(value)) {
-                value = value.replace("/","-");
-                org.nuxeo.ecm.directory.Session directorySession = directoryService.open(VOCS[i]);                
-                if (!directorySession.hasEntry(value)) {
-                    Map<String, Object> entry = new HashMap<String, Object>();
-                    entry.put("id", value);
-                    entry.put("label", value);
-                    if(VOCS_HAS_PARENT[i]) {
-                        entry.put("parent", "");
-                    }
-                    entry.put("obsolete", 0);
-                    entry.put("ordering", 0);
-
-                    directorySession.createEntry(entry);
-                }
-                directorySession.close();
+            if (StringUtils.isNotBlank(value)) {
+                inVocService.ensure(VOCS[i], value.replace("/", "-"));
             }
         }
-
-        return inDoc;
     }
 
 }
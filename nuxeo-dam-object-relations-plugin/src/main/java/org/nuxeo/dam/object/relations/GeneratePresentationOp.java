@@ -17,11 +17,30 @@
 
 package org.nuxeo.dam.object.relations;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.util.PDFMergerUtility;
 import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.core.Constants;
 import org.nuxeo.ecm.automation.core.annotations.Context;
@@ -34,7 +53,6 @@ import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
-import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
 import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
 import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
@@ -44,11 +62,14 @@ import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
 import org.nuxeo.runtime.api.Framework;
 
 /**
- * We always take the jpeg file (in PIctureViews), not the orginal file:content
+ * We always take a jpeg file (in PIctureViews), not the orginal file:content: the smallest one that is big enough for
+ * the layout (see {@link #selectView(MultiviewPicture)})
  */
-@Operation(id = GeneratePresentationOp.ID, category = Constants.CAT_CONVERSION, label = "GeneratePresentation", description = "Receives a list of assets to print. Possible values for style: 3x3, 2x2 or Landscape 6x3. Also, the generatePresentation_site context variable is filled with a Blob of the zipped-site.")
+@Operation(id = GeneratePresentationOp.ID, category = Constants.CAT_CONVERSION, label = "GeneratePresentation", description = "Receives a list of assets to print. Possible values for style: the name of a contributed layout (3x3, 2x2 or Landscape 6x3 by default). Also, the generatePresentation_site context variable is filled with a Blob of the zipped-site.")
 public class GeneratePresentationOp {
 
+    private static final Log log = LogFactory.getLog(GeneratePresentationOp.class);
+
     public static final String ID = "GeneratePresentation";
 
     public static final String WKHTMLTOPDF_COMMAND = "wkhtmltopdf-default";
@@ -57,29 +78,90 @@ public class GeneratePresentationOp {
 
     public static final String MINISITE_BLOB_VAR_NAME = "generatePresentation_site";
 
-    // All these should be put in a template, so no need to change the plug-in to add new layout
-    // Globally, we should have templating system (using FreeMarker, typically).
-    // (no time to build this before a demo)
-    public static final String STYLE_2x2 = ".floating-box {float: left;width: 500px;height: 600px;margin: none; border: none;}\n"
-            + ".imgThumb {max-width: 500px;max-height: 600px;}\n"
-            + ".mainContainer {width: 1000px;}\n"
-            + "body {text-align:-webkit-center;}\n";
+    /**
+     * Max. number of pictures copied in parallel to the mini-site (see {@link #exportImages(File, List, List)})
+     *
+     * @since 7.4
+     */
+    public static final String EXPORT_THREADS_PROP = "dam.object.relations.presentation.export.threads";
+
+    public static final int DEFAULT_EXPORT_THREADS = 8;
+
+    /**
+     * How the pictures are put in the mini-site: {@link #STAGING_LINK} (default) or {@link #STAGING_COPY} (see
+     * {@link #stageImage(Blob, File)})
+     *
+     * @since 7.4
+     */
+    public static final String STAGING_PROP = "dam.object.relations.presentation.staging";
+
+    public static final String STAGING_LINK = "link";
+
+    public static final String STAGING_COPY = "copy";
+
+    /**
+     * Minimum KB to deflate (HTML, CSS, ... not the JPEGs) for the mini-site zip to be deflated on several threads
+     * (see {@link ParallelZipArchiver})
+     *
+     * @since 7.4
+     */
+    public static final String ZIP_PARALLEL_THRESHOLD_PROP = "dam.object.relations.presentation.zip.threshold.kb";
+
+    public static final int DEFAULT_ZIP_PARALLEL_THRESHOLD = 1024;
+
+    /**
+     * Max. number of threads deflating the mini-site zip. Default is the number of processors
+     *
+     * @since 7.4
+     */
+    public static final String ZIP_THREADS_PROP = "dam.object.relations.presentation.zip.threads";
+
+    /**
+     * Number of pages of a chunk when rendering big presentations in parallel (see {@link #renderPdf(File, File)}).
+     * 0 disables the chunks
+     *
+     * @since 7.4
+     */
+    public static final String PDF_CHUNK_PAGES_PROP = "dam.object.relations.presentation.pdf.chunk.pages";
+
+    public static final int DEFAULT_PDF_CHUNK_PAGES = 10;
+
+    /**
+     * Max. number of wkhtmltopdf processes rendering the chunks of a presentation. Default is the number of processors
+     *
+     * @since 7.4
+     */
+    public static final String PDF_THREADS_PROP = "dam.object.relations.presentation.pdf.threads";
+
+    public static final String ORIGINAL_PICTURE_VIEW = "Original";
+
+    /**
+     * Resolution of the pictures in the PDF, used to select the picture view (see
+     * {@link #selectView(MultiviewPicture)}). 96 => one pixel of the view for one CSS pixel of the layout. 0 =>
+     * always {@link #JPEG_PICTURE_VIEW}
+     *
+     * @since 7.4
+     */
+    public static final String VIEW_DPI_PROP = "dam.object.relations.presentation.view.dpi";
+
+    public static final int DEFAULT_VIEW_DPI = 144;
+
+    protected static final int CSS_DPI = 96;
 
-    public static final String STYLE_3x3 = ".floating-box {float: left;width: 310px;height: 370px;margin: none; border: none;}\n"
-            + ".imgThumb {max-width: 310px;max-height: 370px;}\n"
-            + ".mainContainer {width: 1000px;}\n"
-            + "body {text-align:-webkit-center;}\n";
+    protected DocumentModelList docs;
 
-    public static final String STYLE_LANDSCAPE_6x3 = ".floating-box {float: left;width: 250px;height: 300px;margin: none; border: none;}\n"
-            + ".imgThumb {max-width: 250px;max-height: 300px;}\n"
-            + ".mainContainer {width: 1500px;}\n"
-            + "body {text-align:-webkit-center;}\n";
+    protected PresentationLayout layout;
 
-    public static final String IMAGE_DIV_TEMPLATE = "<div class='floating-box keeptogether'><img src='img/THE_IMAGE' class='imgThumb'></div>\n";
+    protected List<Blob> images;
 
-    protected DocumentModelList docs;
+    protected List<String> imageNames;
+
+    protected Blob miniSiteBlob;
+
+    // Min. size of a picture view for the layout, 0 => always JPEG_PICTURE_VIEW
+    protected int minViewWidth = 0;
 
-    protected String hardCodedStyle = "";
+    protected int minViewHeight = 0;
     
     protected File currentTempWorkingFolder = null;
 
@@ -104,8 +186,6 @@ public class GeneratePresentationOp {
 
         docs = input;
 
-        String orientation;
-
         if (StringUtils.isBlank(style)) {
             style = "3x3";
         }
@@ -116,21 +196,23 @@ public class GeneratePresentationOp {
             fileName += ".pdf";
         }
 
-        switch (style.toLowerCase()) {
-        case "landscape 6x3":
-            orientation = "Landscape";
-            hardCodedStyle = STYLE_LANDSCAPE_6x3;
-            break;
-
-        case "3x3":
-            orientation = "Portrait";
-            hardCodedStyle = STYLE_3x3;
-            break;
+        layout = Framework.getService(PresentationLayoutService.class).getLayout(style);
+        if (layout == null) {
+            throw new ClientException("No presentation layout <" + style + ">, and no default layout");
+        }
 
-        default:
-            orientation = "Portrait";
-            hardCodedStyle = STYLE_2x2;
-            break;
+        int dpi = AssetRelationsCaches.getIntProperty(VIEW_DPI_PROP, DEFAULT_VIEW_DPI);
+        minViewWidth = layout.getCellWidth() * dpi / CSS_DPI;
+        minViewHeight = layout.getCellHeight() * dpi / CSS_DPI;
+        collectImages();
+
+        PresentationCache cache = PresentationCache.get();
+        String cacheKey = cache.isEnabled() ? PresentationCache.computeKey(layout, title, images) : null;
+        if (cacheKey != null) {
+            Blob cachedPdf = restoreFromCache(cache, cacheKey);
+            if (cachedPdf != null) {
+                return cachedPdf;
+            }
         }
 
         File indexFile = buildMiniSite();
@@ -139,104 +221,428 @@ public class GeneratePresentationOp {
         // Create a temp. File handled by Nuxeo
         Blob resultPdf = Blobs.createBlobWithExtension(".pdf");
 
-        CmdParameters params = new CmdParameters();
-        params.addNamedParameter("sourceFilePath", indexFile.getAbsolutePath());
-        params.addNamedParameter("targetFilePath", resultPdf.getFile().getAbsolutePath());
-        params.addNamedParameter("orientation", orientation);
-
-        // Run
-        CommandLineExecutorService cles = Framework.getService(CommandLineExecutorService.class);
-        ExecResult result = cles.execCommand(WKHTMLTOPDF_COMMAND, params);
-
-        if (result.getError() != null) {
-            throw new ClientException("Failed to execute the command <" + WKHTMLTOPDF_COMMAND + ">", result.getError());
-        }
+        renderPdf(indexFile, resultPdf.getFile());
 
-        if (!result.isSuccessful()) {
-            throw new ClientException("Failed to execute the command <" + WKHTMLTOPDF_COMMAND + ">. Final command [ "
-                    + result.getCommandLine() + " ] returned with error " + result.getReturnCode());
-        }
         resultPdf.setMimeType("application/pdf");
         resultPdf.setFilename(fileName);
 
+        if (cacheKey != null) {
+            try {
+                cache.put(cacheKey, resultPdf.getFile(), miniSiteBlob.getFile());
+            } catch (IOException e) {
+                log.warn("Cannot cache the presentation", e);
+            }
+        }
+
         // Now we used Nuxeo temp file Handling we can do some cleanup so we don't fill the tmp folder
         cleanup();
 
         return resultPdf;
     }
 
-    protected File buildMiniSite() throws IOException {
-
-        File indexHtml = null;
-        currentTempWorkingFolder = new File(Files.createTempDirectory(
-                "wkhtmltopdf-minisite-" + java.util.UUID.randomUUID().toString()).toString());
-        String htmlFolderName = fileName.replace(".pdf", "") + "-site";
-        File mainFolder = new File(currentTempWorkingFolder, htmlFolderName);
-        mainFolder.mkdir();
-        // File mainFolder = new File(Files.createTempDirectory("wkhtmltopdf-" + java.util.UUID.randomUUID().toString())
-        // .toString());
-        File imgFolder = new File(mainFolder, "img");
-        imgFolder.mkdir();
-
-        String html = "<!DOCTYPE html><html>";
-        html += "<head><style>\n";
-        html += hardCodedStyle + "\n";
-        html += "</style></head>";
+    /*
+     * Reading the views needs the session: done here, in grid order. Only the copies run in parallel (see
+     * exportImages())
+     */
+    protected void collectImages() {
 
-        html += "<body>\n";
-        html += "<div id='mainCont' class='mainContainer'>\n";
-        if (StringUtils.isNotBlank(title)) {
-            html += "<h2 style='text-align: center;'>" + title + "</h2>\n";
-        }
         Blob image;
-        File imageFile;
-        String imageName;
-        int count = 0;
+        images = new ArrayList<Blob>();
+        imageNames = new ArrayList<String>();
         for (DocumentModel doc : docs) {
             if (doc.hasSchema("picture")) {
                 MultiviewPicture mvp = doc.getAdapter(MultiviewPicture.class);
 
                 if (mvp != null) {
-                    PictureView v = mvp.getView(JPEG_PICTURE_VIEW);
+                    PictureView v = selectView(mvp);
                     if (v != null) {
                         image = v.getBlob();
                         if (image != null) {
-                            count += 1;
-                            imageName = "img-" + count + ".jpg";
-                            imageFile = new File(imgFolder, imageName);
-                            image.transferTo(imageFile);
-
-                            html += IMAGE_DIV_TEMPLATE.replace("THE_IMAGE", imageName);
+                            images.add(image);
+                            imageNames.add("img-" + (imageNames.size() + 1) + "." + getImageExtension(image));
                         }
                     }
                 }
             }
         }
-        html += "</div>\n";
-        html += "</body>\n";
-        html += "</html>\n";
+    }
 
-        indexHtml = new File(mainFolder, "index.html");
-        org.apache.commons.io.FileUtils.writeStringToFile(indexHtml, html, false);
+    /**
+     * The extension of the file of a view in the mini-site, from its mime type, else from its file name: The views are
+     * not all JPEG, and the extension decides whether the entry is deflated in the .zip (see
+     * {@link MiniSiteZipWriter#isStored(String)}).
+     *
+     * @since 7.4
+     */
+    protected static String getImageExtension(Blob inBlob) {
+
+        String mimeType = inBlob.getMimeType();
+        if ("image/jpeg".equals(mimeType) || "image/jpg".equals(mimeType) || "image/pjpeg".equals(mimeType)) {
+            return "jpg";
+        }
+        if (mimeType != null && mimeType.startsWith("image/")) {
+            String subType = mimeType.substring("image/".length());
+            if (StringUtils.isAlphanumeric(subType) && !subType.isEmpty()) {
+                return subType.toLowerCase();
+            }
+        }
+
+        String extension = StringUtils.substringAfterLast(StringUtils.defaultString(inBlob.getFilename()), ".");
+        if (StringUtils.isAlphanumeric(extension) && !extension.isEmpty()) {
+            return extension.toLowerCase();
+        }
+        return "jpg";
+    }
+
+    /**
+     * Same PDF and mini-site as the last time these pictures were printed with the same layout and title, if still in
+     * the cache.
+     *
+     * @return the PDF, or null if there is nothing in the cache
+     * @since 7.4
+     */
+    protected Blob restoreFromCache(PresentationCache inCache, String inKey) throws IOException {
+
+        // No temp. blobs for nothing
+        if (!inCache.contains(inKey)) {
+            return null;
+        }
+
+        Blob pdf = Blobs.createBlobWithExtension(".pdf");
+        Blob site = Blobs.createBlobWithExtension(".zip");
+        try {
+            if (!inCache.restore(inKey, pdf.getFile(), site.getFile())) {
+                return null;
+            }
+        } catch (IOException e) {
+            log.warn("Cannot read the presentation cache, the presentation is generated", e);
+            return null;
+        }
+
+        site.setMimeType("application/zip");
+        site.setFilename(getMiniSiteName() + ".zip");
+        ctx.put(MINISITE_BLOB_VAR_NAME, site);
+
+        pdf.setMimeType("application/pdf");
+        pdf.setFilename(fileName);
+        return pdf;
+    }
+
+    /**
+     * The smallest view (in pixels) covering the cell of the layout at the {@link #VIEW_DPI_PROP} resolution. The
+     * style of the layout may fill the cell (cropping or stretching the picture), so a view covers the cell only if
+     * both its width and its height are big enough: a panoramic or a tall picture is never upscaled.
+     * {@link #JPEG_PICTURE_VIEW} if no view is big enough, or if the layout does not give the size of its cells. The "Original" view is never used: it is the original file, not always a JPEG.
+     *
+     * @since 7.4
+     */
+    protected PictureView selectView(MultiviewPicture inMvp) {
+
+        PictureView jpeg = inMvp.getView(JPEG_PICTURE_VIEW);
+        if (minViewWidth <= 0 || minViewHeight <= 0) {
+            return jpeg;
+        }
+
+        PictureView best = null;
+        PictureView[] views = inMvp.getViews();
+        if (views != null) {
+            for (PictureView view : views) {
+                if (view == null || ORIGINAL_PICTURE_VIEW.equals(view.getTitle()) || view.getWidth() <= 0
+                        || view.getHeight() <= 0) {
+                    continue;
+                }
+                if (view.getWidth() >= minViewWidth && view.getHeight() >= minViewHeight) {
+                    if (best == null
+                            || (long) view.getWidth() * view.getHeight() < (long) best.getWidth() * best.getHeight()) {
+                        best = view;
+                    }
+                }
+            }
+        }
+        return best != null ? best : jpeg;
+    }
 
-        File miniSiteZip = new File(currentTempWorkingFolder, htmlFolderName + ".zip");
-        ZipDirectory zd = new ZipDirectory(mainFolder.getAbsolutePath(), miniSiteZip.getAbsolutePath());
-        zd.zip();
-        // miniSiteZip is a valid .zip archive of the site
-        Blob fileSiteZip = new FileBlob(miniSiteZip);
+    protected String getMiniSiteName() {
+        return fileName.replace(".pdf", "") + "-site";
+    }
 
-        // Now, transfer to a temp. blob handled by Nuxeo
-        // (we'll delete everyting else later)
+    protected File buildMiniSite() throws IOException {
+
+        File indexHtml = null;
+        currentTempWorkingFolder = new File(Files.createTempDirectory(
+                "wkhtmltopdf-minisite-" + java.util.UUID.randomUUID().toString()).toString());
+        String htmlFolderName = getMiniSiteName();
+        File mainFolder = new File(currentTempWorkingFolder, htmlFolderName);
+        mainFolder.mkdir();
+        // File mainFolder = new File(Files.createTempDirectory("wkhtmltopdf-" + java.util.UUID.randomUUID().toString())
+        // .toString());
+        File imgFolder = new File(mainFolder, "img");
+        imgFolder.mkdir();
+
+        exportImages(imgFolder, images, imageNames);
+
+        indexHtml = new File(mainFolder, "index.html");
+        renderHtml(indexHtml, title, imageNames);
+
+        // The .zip is written directly in a temp. blob handled by Nuxeo. The img/ folder is for wkhtmltopdf only, the
+        // pictures are streamed from their blobs
         Blob tempBlob = Blobs.createBlobWithExtension(".zip");
-        fileSiteZip.transferTo(tempBlob.getFile());
+        long zipThreshold = AssetRelationsCaches.getIntProperty(ZIP_PARALLEL_THRESHOLD_PROP,
+                DEFAULT_ZIP_PARALLEL_THRESHOLD) * 1024L;
+        int zipThreads = AssetRelationsCaches.getIntProperty(ZIP_THREADS_PROP,
+                Runtime.getRuntime().availableProcessors());
+        ParallelZipArchiver archiver = new ParallelZipArchiver(zipThreshold, zipThreads);
+        archiver.add("index.html", indexHtml);
+        for (int i = 0; i < images.size(); i++) {
+            archiver.add("img/" + imageNames.get(i), images.get(i));
+        }
+        archiver.writeTo(tempBlob.getFile());
         tempBlob.setMimeType("application/zip");
         tempBlob.setFilename(htmlFolderName + ".zip");
 
+        miniSiteBlob = tempBlob;
         ctx.put(MINISITE_BLOB_VAR_NAME, tempBlob);
 
         return indexHtml;
     }
     
+    // Streamed, never fully in memory
+    protected void renderHtml(File inHtmlFile, String inTitle, List<String> inImageNames) throws IOException {
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(inHtmlFile),
+                StandardCharsets.UTF_8));
+        try {
+            layout.render(writer, inTitle, inImageNames);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Renders <code>inIndexHtml</code> as <code>inPdf</code>. When there are more pictures than
+     * {@link #PDF_CHUNK_PAGES_PROP} pages of the layout, the grid is split in chunks of whole pages, each of them
+     * rendered by its own wkhtmltopdf process (at most {@link #PDF_THREADS_PROP} at a time), and the PDFs are merged
+     * in order.
+     * <p>
+     * The title takes room on the first page, so the first chunk has one page of pictures less: Its last row does not
+     * spill on a half-empty page. With one page per chunk, the title is a chunk of its own.
+     *
+     * @since 7.4
+     */
+    protected void renderPdf(File inIndexHtml, File inPdf) throws IOException, CommandNotAvailable {
+
+        int imagesPerPage = layout.getImagesPerPage();
+        int chunkSize = imagesPerPage
+                * AssetRelationsCaches.getIntProperty(PDF_CHUNK_PAGES_PROP, DEFAULT_PDF_CHUNK_PAGES);
+        int threads = AssetRelationsCaches.getIntProperty(PDF_THREADS_PROP, Runtime.getRuntime().availableProcessors());
+        if (chunkSize <= 0 || threads <= 1 || imageNames.size() <= chunkSize) {
+            runWkhtmltopdf(inIndexHtml, inPdf);
+            return;
+        }
+
+        List<Integer> bounds = getChunkBounds(imageNames.size(), chunkSize,
+                StringUtils.isNotBlank(title) ? imagesPerPage : 0);
+        final AtomicInteger threadCount = new AtomicInteger();
+        int chunkCount = bounds.size() - 1;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, chunkCount), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable inRunnable) {
+                Thread t = new Thread(inRunnable, "PresentationPdf-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        List<File> chunkPdfs = new ArrayList<File>();
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < chunkCount; i++) {
+                List<String> chunkNames = imageNames.subList(bounds.get(i), bounds.get(i + 1));
+                // Next to index.html, for the img/ relative paths. The title is only on the first page
+                final File chunkHtml = new File(inIndexHtml.getParentFile(), "chunk-" + i + ".html");
+                renderHtml(chunkHtml, i == 0 ? title : null, chunkNames);
+
+                final File chunkPdf = new File(currentTempWorkingFolder, "chunk-" + i + ".pdf");
+                chunkPdfs.add(chunkPdf);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws CommandNotAvailable {
+                        runWkhtmltopdf(chunkHtml, chunkPdf);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof CommandNotAvailable) {
+                        throw (CommandNotAvailable) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new ClientException("Failed to render a chunk of the presentation", cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        mergePdfs(chunkPdfs, inPdf);
+    }
+
+    /*
+     * Start of each chunk, then the end of the last one. The first chunk has inFirstChunkReduction pictures less (it
+     * can be empty: the title alone)
+     */
+    protected static List<Integer> getChunkBounds(int inCount, int inChunkSize, int inFirstChunkReduction) {
+
+        List<Integer> bounds = new ArrayList<Integer>();
+        bounds.add(0);
+        for (int end = Math.max(0, inChunkSize - inFirstChunkReduction); end < inCount; end += inChunkSize) {
+            bounds.add(end);
+        }
+        bounds.add(inCount);
+        return bounds;
+    }
+
+    protected void runWkhtmltopdf(File inHtml, File inPdf) throws CommandNotAvailable {
+
+        CmdParameters params = new CmdParameters();
+        params.addNamedParameter("sourceFilePath", inHtml.getAbsolutePath());
+        params.addNamedParameter("targetFilePath", inPdf.getAbsolutePath());
+        params.addNamedParameter("orientation", layout.getOrientation());
+
+        // Run
+        CommandLineExecutorService cles = Framework.getService(CommandLineExecutorService.class);
+        ExecResult result = cles.execCommand(WKHTMLTOPDF_COMMAND, params);
+
+        if (result.getError() != null) {
+            throw new ClientException("Failed to execute the command <" + WKHTMLTOPDF_COMMAND + ">", result.getError());
+        }
+
+        if (!result.isSuccessful()) {
+            throw new ClientException("Failed to execute the command <" + WKHTMLTOPDF_COMMAND + ">. Final command [ "
+                    + result.getCommandLine() + " ] returned with error " + result.getReturnCode());
+        }
+    }
+
+    protected static void mergePdfs(List<File> inPdfs, File inTarget) throws IOException {
+
+        PDFMergerUtility merger = new PDFMergerUtility();
+        for (File pdf : inPdfs) {
+            merger.addSource(pdf);
+        }
+        merger.setDestinationFileName(inTarget.getAbsolutePath());
+        try {
+            merger.mergeDocuments();
+        } catch (COSVisitorException e) {
+            throw new IOException("Cannot merge the PDFs of the presentation", e);
+        }
+    }
+
+    /**
+     * Copies each blob of <code>inImages</code> to <code>inImgFolder</code>, using the name at the same index in
+     * <code>inNames</code>. With a remote binary store, most of the time is spent waiting for each blob, so the copies
+     * run in parallel, using at most {@link #EXPORT_THREADS_PROP} threads. Returns once all the files are written.
+     *
+     * @since 7.4
+     */
+    protected void exportImages(final File inImgFolder, List<Blob> inImages, List<String> inNames) throws IOException {
+
+        int threads = Math.min(inImages.size(),
+                AssetRelationsCaches.getIntProperty(EXPORT_THREADS_PROP, DEFAULT_EXPORT_THREADS));
+        if (threads <= 1) {
+            for (int i = 0; i < inImages.size(); i++) {
+                stageImage(inImages.get(i), new File(inImgFolder, inNames.get(i)));
+            }
+            return;
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable inRunnable) {
+                Thread t = new Thread(inRunnable, "PresentationExport-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < inImages.size(); i++) {
+                final Blob image = inImages.get(i);
+                final File imageFile = new File(inImgFolder, inNames.get(i));
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        stageImage(image, imageFile);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IOException("Cannot export an image", cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            // Also cancels the remaining copies if one failed
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Puts <code>inImage</code> in the mini-site as <code>inTarget</code>. When the blob is backed by a file (local
+     * binary store, typically), and unless {@link #STAGING_PROP} is "copy", the file is hard linked (or, if not
+     * possible, symbolically linked) instead of copied. Binaries are never modified once stored, so sharing the file
+     * is safe.
+     *
+     * @since 7.4
+     */
+    protected static void stageImage(Blob inImage, File inTarget) throws IOException {
+
+        File source = STAGING_COPY.equals(Framework.getProperty(STAGING_PROP, STAGING_LINK)) ? null
+                : inImage.getFile();
+        if (source != null && source.isFile()) {
+            Path target = inTarget.toPath();
+            try {
+                Files.createLink(target, source.toPath());
+                return;
+            } catch (IOException | UnsupportedOperationException | SecurityException e) {
+                // Another file system, typically
+                log.debug("Cannot hard link " + source + ", trying a symbolic link", e);
+            }
+            try {
+                Files.createSymbolicLink(target, source.getAbsoluteFile().toPath());
+                return;
+            } catch (IOException | UnsupportedOperationException | SecurityException e) {
+                log.debug("Cannot link " + source + ", copying it", e);
+            }
+        }
+        inImage.transferTo(inTarget);
+    }
+
     protected void cleanup() throws IOException {
         
         if(currentTempWorkingFolder != null && currentTempWorkingFolder.exists()) {
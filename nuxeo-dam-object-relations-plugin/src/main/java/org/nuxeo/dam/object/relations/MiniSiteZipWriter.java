@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Writes a .zip entry by entry, from in-memory content, files or blobs: No need to first build the whole directory to
+ * zip (as the former <code>ZipDirectory</code> did).
+ * <p>
+ * Media already compressed (JPEG, PNG, ...) are STORED: deflating them costs CPU and gains nothing. Other entries
+ * (HTML, ...) are deflated. A STORED entry needs its size and CRC before its content, so its source is read twice: Use
+ * local files (or file-backed blobs) for them.
+ *
+ * @since 7.4
+ */
+public class MiniSiteZipWriter implements Closeable {
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected static final Set<String> STORED_EXTENSIONS = new HashSet<String>(Arrays.asList("jpg", "jpeg", "png",
+            "gif", "zip", "gz", "pdf", "mp3", "mp4", "mov"));
+
+    protected final ZipOutputStream zos;
+
+    protected final byte[] buffer = new byte[BUFFER_SIZE];
+
+    public MiniSiteZipWriter(File inDestZip) throws IOException {
+        zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(inDestZip), BUFFER_SIZE));
+    }
+
+    public static boolean isStored(String inEntryName) {
+
+        int dot = inEntryName.lastIndexOf('.');
+        return dot >= 0 && STORED_EXTENSIONS.contains(inEntryName.substring(dot + 1).toLowerCase());
+    }
+
+    public void put(String inEntryName, byte[] inContent) throws IOException {
+
+        ZipEntry entry = new ZipEntry(inEntryName);
+        if (isStored(inEntryName)) {
+            CRC32 crc = new CRC32();
+            crc.update(inContent);
+            setStored(entry, inContent.length, crc.getValue());
+        }
+        zos.putNextEntry(entry);
+        zos.write(inContent);
+        zos.closeEntry();
+    }
+
+    public void put(String inEntryName, File inFile) throws IOException {
+        put(inEntryName, inFile, null);
+    }
+
+    /**
+     * If the blob is not backed by a file, its stream is read twice for a STORED entry
+     */
+    public void put(String inEntryName, Blob inBlob) throws IOException {
+        put(inEntryName, inBlob.getFile(), inBlob);
+    }
+
+    protected void put(String inEntryName, File inFile, Blob inBlob) throws IOException {
+
+        ZipEntry entry = new ZipEntry(inEntryName);
+        if (isStored(inEntryName)) {
+            CRC32 crc = new CRC32();
+            long size = 0;
+            InputStream in = open(inFile, inBlob);
+            try {
+                int length;
+                while ((length = in.read(buffer)) >= 0) {
+                    crc.update(buffer, 0, length);
+                    size += length;
+                }
+            } finally {
+                in.close();
+            }
+            setStored(entry, size, crc.getValue());
+        }
+
+        zos.putNextEntry(entry);
+        InputStream in = open(inFile, inBlob);
+        try {
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                zos.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+        zos.closeEntry();
+    }
+
+    protected static InputStream open(File inFile, Blob inBlob) throws IOException {
+        return inFile != null ? new FileInputStream(inFile) : inBlob.getStream();
+    }
+
+    protected static void setStored(ZipEntry inEntry, long inSize, long inCrc) {
+
+        inEntry.setMethod(ZipEntry.STORED);
+        inEntry.setSize(inSize);
+        inEntry.setCompressedSize(inSize);
+        inEntry.setCrc(inCrc);
+    }
+
+    @Override
+    public void close() throws IOException {
+        zos.close();
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import javax.naming.NamingException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Runs a short piece of work in its own transaction, committed as soon as the work is done. The transaction of the
+ * caller, if any, is suspended meanwhile and resumed after.
+ * <p>
+ * Used for what other sessions must see at once, whatever happens to the caller's transaction: relation targets
+ * shared by the assets of several workers (see {@link RelationTargetResolver}), vocabulary entries (see
+ * {@link VocabularyIdSet}). The work must not need what the caller's transaction did not commit yet.
+ *
+ * @since 7.4
+ */
+public class NewTransactionRunner {
+
+    private NewTransactionRunner() {
+    }
+
+    /**
+     * Runs <code>inWork</code> in a new transaction. If it throws, the new transaction is rolled back and the exception
+     * is thrown again. A commit failure is also thrown.
+     */
+    public static void run(Runnable inWork) {
+
+        TransactionManager transactionManager = null;
+        Transaction suspended = null;
+        if (TransactionHelper.isTransactionActiveOrMarkedRollback()) {
+            try {
+                transactionManager = TransactionHelper.lookupTransactionManager();
+                suspended = transactionManager.suspend();
+            } catch (NamingException | SystemException e) {
+                throw new ClientException("Cannot suspend the current transaction", e);
+            }
+        }
+
+        try {
+            boolean started = TransactionHelper.startTransaction();
+            try {
+                inWork.run();
+            } catch (RuntimeException e) {
+                if (started) {
+                    TransactionHelper.setTransactionRollbackOnly();
+                }
+                throw e;
+            } finally {
+                if (started) {
+                    TransactionHelper.commitOrRollbackTransaction();
+                }
+            }
+        } finally {
+            if (suspended != null) {
+                try {
+                    transactionManager.resume(suspended);
+                } catch (InvalidTransactionException | IllegalStateException | SystemException e) {
+                    throw new ClientException("Cannot resume the suspended transaction", e);
+                }
+            }
+        }
+    }
+
+}
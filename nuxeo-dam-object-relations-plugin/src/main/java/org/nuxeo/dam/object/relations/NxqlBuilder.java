@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+
+/**
+ * Builds a NXQL query, escaping the values. Mainly used for projections (see {@link #fetch(CoreSession)}), so we don't
+ * load full documents just to get their id:
+ *
+ * <pre>
+ * String id = NxqlBuilder.select(NXQL.ECM_UUID).from(&quot;StyleNumber&quot;)
+ *         .eq(&quot;style_number:number&quot;, number).live().fetchFirstValue(session, NXQL.ECM_UUID);
+ * </pre>
+ *
+ * All the conditions are joined with AND.
+ *
+ * @since 7.4
+ */
+public class NxqlBuilder {
+
+    protected final StringBuilder sb = new StringBuilder(256);
+
+    protected boolean hasWhere = false;
+
+    protected int limit = 0;
+
+    protected NxqlBuilder(String[] inColumns) {
+
+        sb.append("SELECT ");
+        if (inColumns.length == 0) {
+            sb.append("*");
+        }
+        for (int i = 0; i < inColumns.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(inColumns[i]);
+        }
+    }
+
+    /**
+     * @param inColumns the columns (<code>ecm:uuid</code>, <code>dc:title</code>, ...). No column means
+     *            <code>*</code>
+     */
+    public static NxqlBuilder select(String... inColumns) {
+        return new NxqlBuilder(inColumns);
+    }
+
+    public NxqlBuilder from(String inDocType) {
+
+        sb.append(" FROM ").append(inDocType);
+        return this;
+    }
+
+    public NxqlBuilder eq(String inField, Object inValue) {
+
+        return where(inField + " = " + literal(inValue));
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>inValues</code> is empty (the query would be invalid)
+     */
+    public NxqlBuilder in(String inField, Collection<?> inValues) {
+
+        if (inValues.isEmpty()) {
+            throw new IllegalArgumentException("No value for " + inField);
+        }
+        return where(inField + " IN " + inList(inValues));
+    }
+
+    /**
+     * Adds a condition as is: it must not contain unescaped values.
+     */
+    public NxqlBuilder where(String inCondition) {
+
+        sb.append(hasWhere ? " AND " : " WHERE ").append(inCondition);
+        hasWhere = true;
+        return this;
+    }
+
+    /**
+     * Excludes versions, proxies and deleted documents (see {@link AssetRelationsBuilder#USUAL_NXQL_LAST_FILTER})
+     */
+    public NxqlBuilder live() {
+
+        return where("ecm:isCheckedInVersion = 0 AND ecm:isProxy = 0 AND ecm:currentLifeCycleState != 'deleted'");
+    }
+
+    public NxqlBuilder limit(int inLimit) {
+
+        limit = inLimit;
+        return this;
+    }
+
+    public String build() {
+
+        return limit > 0 ? sb.toString() + " LIMIT " + limit : sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return build();
+    }
+
+    /**
+     * Runs the query with <code>queryAndFetch</code>: Only the selected columns are read. The result is fully read (up
+     * to the limit, if any) and closed.
+     */
+    public List<Map<String, Serializable>> fetch(CoreSession inSession) {
+
+        List<Map<String, Serializable>> rows = new ArrayList<Map<String, Serializable>>();
+        IterableQueryResult result = inSession.queryAndFetch(build(), NXQL.NXQL);
+        try {
+            Iterator<Map<String, Serializable>> it = result.iterator();
+            while (it.hasNext() && (limit <= 0 || rows.size() < limit)) {
+                rows.add(it.next());
+            }
+        } finally {
+            result.close();
+        }
+        return rows;
+    }
+
+    /**
+     * @return the value of <code>inColumn</code> in the first row, or null if there is no row
+     */
+    public String fetchFirstValue(CoreSession inSession, String inColumn) {
+
+        List<Map<String, Serializable>> rows = limit(1).fetch(inSession);
+        return rows.isEmpty() ? null : (String) rows.get(0).get(inColumn);
+    }
+
+    /**
+     * @return the NXQL literal of <code>inValue</code>: Numbers and booleans as is, anything else as an escaped string
+     */
+    public static String literal(Object inValue) {
+
+        if (inValue instanceof Number) {
+            return inValue.toString();
+        }
+        if (inValue instanceof Boolean) {
+            return ((Boolean) inValue) ? "1" : "0";
+        }
+        return NXQL.escapeString(String.valueOf(inValue));
+    }
+
+    /**
+     * @return <code>(value1, value2, ...)</code>, each value being escaped (see {@link #literal(Object)})
+     */
+    public static String inList(Collection<?> inValues) {
+
+        StringBuilder list = new StringBuilder("(");
+        for (Object value : inValues) {
+            if (list.length() > 1) {
+                list.append(", ");
+            }
+            list.append(literal(value));
+        }
+        return list.append(")").toString();
+    }
+
+}
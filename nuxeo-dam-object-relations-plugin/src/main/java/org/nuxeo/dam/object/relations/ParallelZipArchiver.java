@@ -0,0 +1,534 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Builds a .zip from a list of entries, deflating them on several threads (one entry per task, like pigz does with
+ * blocks) and writing them in the order they were added.
+ * <p>
+ * <code>java.util.zip.ZipOutputStream</code> can only deflate by itself, on the writing thread, so the parallel path
+ * writes the (standard) zip structures itself: local headers, data, central directory. No zip64: an archive is limited
+ * to 65535 entries and 4GB.
+ * <p>
+ * Deflated entries are kept in memory until they are written, so only a window of entries is submitted at a time
+ * (like pigz bounds its blocks in flight): at most a few entries per thread, and at most
+ * <code>inWindowBytes</code> of content to deflate. An entry larger than the window is deflated alone. Each buffer is
+ * released once written.
+ * <p>
+ * Below the threshold of bytes to deflate, or with only one entry to deflate, threads cost more than they save: The
+ * archive is written sequentially by {@link MiniSiteZipWriter}. Entries whose extension is already compressed (see
+ * {@link MiniSiteZipWriter#isStored(String)}) are STORED in both cases.
+ *
+ * @since 7.4
+ */
+public class ParallelZipArchiver {
+
+    public static final long DEFAULT_PARALLEL_THRESHOLD = 1024 * 1024;
+
+    public static final long DEFAULT_WINDOW_BYTES = 32 * 1024 * 1024;
+
+    // Entries in flight per thread: one deflating, the next ones queued
+    protected static final int WINDOW_ENTRIES_PER_THREAD = 2;
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected static final long MAX_ZIP32_VALUE = 0xFFFFFFFFL;
+
+    protected static final int MAX_ZIP32_ENTRIES = 0xFFFF;
+
+    protected static final int LOCAL_HEADER_SIG = 0x04034b50;
+
+    protected static final int CENTRAL_HEADER_SIG = 0x02014b50;
+
+    protected static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+
+    // Names are encoded in UTF-8
+    protected static final int FLAG_UTF8 = 0x0800;
+
+    protected static final int METHOD_STORED = 0;
+
+    protected static final int METHOD_DEFLATED = 8;
+
+    protected final long parallelThreshold;
+
+    protected final int threads;
+
+    protected final long windowBytes;
+
+    protected final List<Entry> entries = new ArrayList<Entry>();
+
+    protected long bytesToDeflate = 0;
+
+    protected int entriesToDeflate = 0;
+
+    /**
+     * @param inParallelThreshold Minimum number of bytes to deflate for the parallel path
+     * @param inThreads Max. number of threads deflating entries. 1 or less => always sequential
+     */
+    public ParallelZipArchiver(long inParallelThreshold, int inThreads) {
+        this(inParallelThreshold, inThreads, DEFAULT_WINDOW_BYTES);
+    }
+
+    /**
+     * @param inWindowBytes Max. number of bytes being deflated or waiting to be written (an entry larger than this is
+     *            deflated alone)
+     */
+    public ParallelZipArchiver(long inParallelThreshold, int inThreads, long inWindowBytes) {
+        parallelThreshold = inParallelThreshold;
+        threads = inThreads;
+        windowBytes = inWindowBytes;
+    }
+
+    public void add(String inEntryName, byte[] inContent) {
+        add(new Entry(inEntryName, inContent, null, null));
+    }
+
+    public void add(String inEntryName, File inFile) {
+        add(new Entry(inEntryName, null, inFile, null));
+    }
+
+    /**
+     * The blob is streamed to the archive when the entry is written. If it is not backed by a file, its stream is read
+     * twice for a STORED entry (see {@link MiniSiteZipWriter#put(String, Blob)}).
+     */
+    public void add(String inEntryName, Blob inBlob) {
+
+        File file = inBlob.getFile();
+        add(file != null ? new Entry(inEntryName, null, file, null) : new Entry(inEntryName, null, null, inBlob));
+    }
+
+    protected void add(Entry inEntry) {
+
+        entries.add(inEntry);
+        if (!inEntry.stored) {
+            entriesToDeflate += 1;
+            bytesToDeflate += inEntry.getSourceLength();
+        }
+    }
+
+    public boolean isParallel() {
+        return threads > 1 && entriesToDeflate > 1 && bytesToDeflate >= parallelThreshold;
+    }
+
+    public void writeTo(File inDestZip) throws IOException {
+
+        if (isParallel()) {
+            writeParallel(inDestZip);
+        } else {
+            writeSequential(inDestZip);
+        }
+    }
+
+    protected void writeSequential(File inDestZip) throws IOException {
+
+        MiniSiteZipWriter zipWriter = new MiniSiteZipWriter(inDestZip);
+        try {
+            for (Entry entry : entries) {
+                if (entry.content != null) {
+                    zipWriter.put(entry.name, entry.content);
+                } else if (entry.file != null) {
+                    zipWriter.put(entry.name, entry.file);
+                } else {
+                    zipWriter.put(entry.name, entry.blob);
+                }
+            }
+        } finally {
+            zipWriter.close();
+        }
+    }
+
+    protected void writeParallel(File inDestZip) throws IOException {
+
+        if (entries.size() > MAX_ZIP32_ENTRIES) {
+            throw new IOException("Too many entries for a zip (" + entries.size() + ")");
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, entriesToDeflate),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable inRunnable) {
+                        Thread t = new Thread(inRunnable, "ParallelZip-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        try {
+            // Submitted in order, so the first entries are ready first
+            Deque<Future<Entry>> window = new ArrayDeque<Future<Entry>>();
+            long bytesInWindow = 0;
+            int next = 0;
+
+            CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    inDestZip), BUFFER_SIZE));
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (next < entries.size() || !window.isEmpty()) {
+                    while (next < entries.size() && fitsInWindow(window.size(), bytesInWindow, entries.get(next))) {
+                        Entry entry = entries.get(next);
+                        window.add(submit(executor, entry));
+                        bytesInWindow += entry.getWindowCost();
+                        next += 1;
+                    }
+
+                    Entry entry = get(window.poll());
+                    bytesInWindow -= entry.getWindowCost();
+                    entry.offset = out.count;
+                    writeLocalHeader(out, entry);
+                    if (entry.deflated != null) {
+                        out.write(entry.deflated);
+                        // Not needed anymore
+                        entry.deflated = null;
+                    } else {
+                        copy(entry.open(), out, buffer);
+                    }
+                }
+
+                long centralDirOffset = out.count;
+                for (Entry entry : entries) {
+                    writeCentralHeader(out, entry);
+                }
+                writeEndOfCentralDir(out, centralDirOffset, out.count - centralDirOffset);
+            } finally {
+                out.close();
+            }
+        } finally {
+            // Also cancels the remaining tasks if one failed
+            executor.shutdownNow();
+        }
+    }
+
+    protected boolean fitsInWindow(int inEntriesInWindow, long inBytesInWindow, Entry inEntry) {
+
+        if (inEntriesInWindow == 0) {
+            return true;
+        }
+        return inEntriesInWindow < threads * WINDOW_ENTRIES_PER_THREAD
+                && inBytesInWindow + inEntry.getWindowCost() <= windowBytes;
+    }
+
+    protected static Future<Entry> submit(ExecutorService inExecutor, final Entry inEntry) {
+
+        return inExecutor.submit(new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException {
+                inEntry.prepare();
+                return inEntry;
+            }
+        });
+    }
+
+    protected static Entry get(Future<Entry> inFuture) throws IOException {
+
+        try {
+            return inFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Cannot deflate an entry", cause);
+        }
+    }
+
+    protected static void copy(InputStream inStream, OutputStream inOut, byte[] inBuffer) throws IOException {
+
+        try {
+            int length;
+            while ((length = inStream.read(inBuffer)) >= 0) {
+                inOut.write(inBuffer, 0, length);
+            }
+        } finally {
+            inStream.close();
+        }
+    }
+
+    // -------------------- Zip structures (little endian) --------------------
+    protected static void writeLocalHeader(CountingOutputStream inOut, Entry inEntry) throws IOException {
+
+        checkZip32(inOut.count);
+        writeInt(inOut, LOCAL_HEADER_SIG);
+        writeShort(inOut, inEntry.getVersionNeeded());
+        writeShort(inOut, FLAG_UTF8);
+        writeShort(inOut, inEntry.getMethod());
+        writeInt(inOut, inEntry.dosTime);
+        writeInt(inOut, inEntry.crc);
+        writeInt(inOut, inEntry.compressedSize);
+        writeInt(inOut, inEntry.size);
+        writeShort(inOut, inEntry.nameBytes.length);
+        writeShort(inOut, 0);
+        inOut.write(inEntry.nameBytes);
+    }
+
+    protected static void writeCentralHeader(CountingOutputStream inOut, Entry inEntry) throws IOException {
+
+        writeInt(inOut, CENTRAL_HEADER_SIG);
+        writeShort(inOut, 20);
+        writeShort(inOut, inEntry.getVersionNeeded());
+        writeShort(inOut, FLAG_UTF8);
+        writeShort(inOut, inEntry.getMethod());
+        writeInt(inOut, inEntry.dosTime);
+        writeInt(inOut, inEntry.crc);
+        writeInt(inOut, inEntry.compressedSize);
+        writeInt(inOut, inEntry.size);
+        writeShort(inOut, inEntry.nameBytes.length);
+        // Extra field, comment, disk number, internal and external attributes
+        writeShort(inOut, 0);
+        writeShort(inOut, 0);
+        writeShort(inOut, 0);
+        writeShort(inOut, 0);
+        writeInt(inOut, 0);
+        writeInt(inOut, inEntry.offset);
+        inOut.write(inEntry.nameBytes);
+    }
+
+    protected void writeEndOfCentralDir(CountingOutputStream inOut, long inOffset, long inSize) throws IOException {
+
+        checkZip32(inOffset + inSize);
+        writeInt(inOut, END_OF_CENTRAL_DIR_SIG);
+        writeShort(inOut, 0);
+        writeShort(inOut, 0);
+        writeShort(inOut, entries.size());
+        writeShort(inOut, entries.size());
+        writeInt(inOut, inSize);
+        writeInt(inOut, inOffset);
+        writeShort(inOut, 0);
+    }
+
+    protected static void checkZip32(long inValue) throws IOException {
+
+        if (inValue > MAX_ZIP32_VALUE) {
+            throw new IOException("Archive too large for a zip without zip64");
+        }
+    }
+
+    protected static void writeShort(OutputStream inOut, int inValue) throws IOException {
+        inOut.write(inValue & 0xFF);
+        inOut.write((inValue >>> 8) & 0xFF);
+    }
+
+    protected static void writeInt(OutputStream inOut, long inValue) throws IOException {
+        writeShort(inOut, (int) (inValue & 0xFFFF));
+        writeShort(inOut, (int) ((inValue >>> 16) & 0xFFFF));
+    }
+
+    protected static long toDosTime(long inMillis) {
+
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(inMillis);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            // 1980-01-01 00:00:00, the min. value
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (year - 1980) << 25) | ((long) (cal.get(Calendar.MONTH) + 1) << 21)
+                | ((long) cal.get(Calendar.DAY_OF_MONTH) << 16) | ((long) cal.get(Calendar.HOUR_OF_DAY) << 11)
+                | ((long) cal.get(Calendar.MINUTE) << 5) | ((long) cal.get(Calendar.SECOND) >> 1);
+    }
+
+    // -------------------- Inner classes --------------------
+    protected static class Entry {
+
+        protected final String name;
+
+        protected final byte[] nameBytes;
+
+        protected final byte[] content;
+
+        protected final File file;
+
+        protected final Blob blob;
+
+        protected final boolean stored;
+
+        protected final long dosTime;
+
+        protected long crc;
+
+        protected long size;
+
+        protected long compressedSize;
+
+        protected long offset;
+
+        // Only for deflated entries, once prepared
+        protected byte[] deflated;
+
+        // Only one of the sources is not null
+        protected Entry(String inName, byte[] inContent, File inFile, Blob inBlob) {
+            name = inName;
+            nameBytes = inName.getBytes(StandardCharsets.UTF_8);
+            content = inContent;
+            file = inFile;
+            blob = inBlob;
+            stored = MiniSiteZipWriter.isStored(inName);
+            dosTime = toDosTime(inFile != null ? inFile.lastModified() : System.currentTimeMillis());
+        }
+
+        // 0 if unknown (a blob may not know its length)
+        protected long getSourceLength() {
+
+            if (content != null) {
+                return content.length;
+            }
+            return file != null ? file.length() : Math.max(0, blob.getLength());
+        }
+
+        /**
+         * Bytes held in memory from when the entry is submitted until it is written. A STORED entry is copied from its
+         * source when written.
+         */
+        protected long getWindowCost() {
+            return stored ? 0 : getSourceLength();
+        }
+
+        protected InputStream open() throws IOException {
+
+            if (content != null) {
+                return new ByteArrayInputStream(content);
+            }
+            return file != null ? new FileInputStream(file) : blob.getStream();
+        }
+
+        protected int getMethod() {
+            return stored ? METHOD_STORED : METHOD_DEFLATED;
+        }
+
+        protected int getVersionNeeded() {
+            return stored ? 10 : 20;
+        }
+
+        /**
+         * Computes the CRC and the sizes, and deflates the content if the entry is not STORED. Called on a worker
+         * thread.
+         */
+        protected void prepare() throws IOException {
+
+            CRC32 crc32 = new CRC32();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long length = 0;
+            Deflater deflater = null;
+            ByteArrayOutputStream deflatedBytes = null;
+            DeflaterOutputStream deflaterOut = null;
+            if (!stored) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                int initialSize = (int) Math.min(getSourceLength() / 2 + 64, Integer.MAX_VALUE);
+                deflatedBytes = new ByteArrayOutputStream(initialSize);
+                deflaterOut = new DeflaterOutputStream(deflatedBytes, deflater, BUFFER_SIZE);
+            }
+
+            InputStream in = open();
+            try {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    crc32.update(buffer, 0, read);
+                    length += read;
+                    if (deflaterOut != null) {
+                        deflaterOut.write(buffer, 0, read);
+                    }
+                }
+                if (deflaterOut != null) {
+                    deflaterOut.finish();
+                }
+            } finally {
+                in.close();
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+
+            checkZip32(length);
+            crc = crc32.getValue();
+            size = length;
+            if (deflatedBytes != null) {
+                deflated = deflatedBytes.toByteArray();
+                compressedSize = deflated.length;
+            } else {
+                compressedSize = length;
+            }
+        }
+    }
+
+    protected static class CountingOutputStream extends OutputStream {
+
+        protected final OutputStream out;
+
+        protected long count = 0;
+
+        protected CountingOutputStream(OutputStream inOut) {
+            out = inOut;
+        }
+
+        @Override
+        public void write(int inByte) throws IOException {
+            out.write(inByte);
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] inBytes, int inOffset, int inLength) throws IOException {
+            out.write(inBytes, inOffset, inLength);
+            count += inLength;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.Environment;
+
+/**
+ * Progress of an {@link UpdatePicturesOp} run, saved in a properties file of the data directory after each commit, so
+ * an interrupted run can be resumed (see the <code>resume</code> parameter of the operation).
+ * <p>
+ * Pictures are walked in <code>ecm:uuid</code> order. For each partition (a range of uuids), we save the last
+ * processed uuid and the counters. Everything up to this uuid was committed.
+ * <p>
+ * Shared by the partitions of a run: Each partition only reads and writes its own keys.
+ * <p>
+ * The file also holds the watermark of the incremental runs (see {@link #getWatermark()}), which is kept when the
+ * checkpoint is cleared.
+ *
+ * @since 7.4
+ */
+public class PicturesUpdateCheckpoint {
+
+    private static final Log log = LogFactory.getLog(PicturesUpdateCheckpoint.class);
+
+    protected static final String KEY_LAST_UUID = ".lastUuid";
+
+    protected static final String KEY_DOCUMENTS = ".documents";
+
+    protected static final String KEY_SAVED = ".saved";
+
+    protected static final String KEY_DONE = ".done";
+
+    protected static final String KEY_WATERMARK = "watermark";
+
+    protected static final String KEY_RUN_START = "runStart";
+
+    protected final File file;
+
+    protected final Properties values = new Properties();
+
+    public PicturesUpdateCheckpoint(String inRepositoryName) {
+        File dir = new File(Environment.getDefault().getData(), AssetRelationsCaches.DATA_DIRECTORY_NAME);
+        file = new File(dir, "update-pictures-" + inRepositoryName + ".properties");
+        readFile();
+    }
+
+    /**
+     * Reloads the last saved checkpoint, if any.
+     *
+     * @return true if there is a checkpoint to resume from
+     */
+    public synchronized boolean load() {
+
+        values.clear();
+        readFile();
+        return values.size() > (values.containsKey(KEY_WATERMARK) ? 1 : 0);
+    }
+
+    protected void readFile() {
+
+        if (!file.exists()) {
+            return;
+        }
+
+        try (InputStream in = new FileInputStream(file)) {
+            values.load(in);
+        } catch (IOException e) {
+            log.error("Cannot read the checkpoint <" + file + ">, starting from scratch", e);
+            values.clear();
+        }
+    }
+
+    public synchronized String getLastUuid(String inPartition) {
+        return values.getProperty(inPartition + KEY_LAST_UUID);
+    }
+
+    public synchronized long getDocumentCount(String inPartition) {
+        return getLong(inPartition + KEY_DOCUMENTS);
+    }
+
+    public synchronized long getCountSaved(String inPartition) {
+        return getLong(inPartition + KEY_SAVED);
+    }
+
+    public synchronized boolean isDone(String inPartition) {
+        return "true".equals(values.getProperty(inPartition + KEY_DONE));
+    }
+
+    /**
+     * Must be called after the commit: everything up to <code>inLastUuid</code> is considered as processed.
+     */
+    public synchronized void save(String inPartition, String inLastUuid, long inDocumentCount, long inCountSaved,
+            boolean inDone) {
+
+        if (inLastUuid != null) {
+            values.setProperty(inPartition + KEY_LAST_UUID, inLastUuid);
+        }
+        values.setProperty(inPartition + KEY_DOCUMENTS, String.valueOf(inDocumentCount));
+        values.setProperty(inPartition + KEY_SAVED, String.valueOf(inCountSaved));
+        values.setProperty(inPartition + KEY_DONE, String.valueOf(inDone));
+
+        write();
+    }
+
+    /**
+     * Removes the checkpoint (but not the watermark). Called when starting a new run (not resuming) and when a run is
+     * fully done.
+     */
+    public synchronized void clear() {
+
+        String watermark = values.getProperty(KEY_WATERMARK);
+        values.clear();
+        if (watermark != null) {
+            values.setProperty(KEY_WATERMARK, watermark);
+            write();
+        } else if (file.exists() && !file.delete()) {
+            log.warn("Cannot delete the checkpoint <" + file + ">");
+        }
+    }
+
+    /**
+     * @return the start time (in ms) of the last successful incremental run, or 0 if there is none
+     */
+    public synchronized long getWatermark() {
+        return getLong(KEY_WATERMARK);
+    }
+
+    /**
+     * @return the start time (in ms) of the run this checkpoint belongs to, or 0 if unknown. A resumed run keeps it, so
+     *         its watermark covers what was modified while it was interrupted.
+     */
+    public synchronized long getRunStart() {
+        return getLong(KEY_RUN_START);
+    }
+
+    public synchronized void saveRunStart(long inTime) {
+
+        values.setProperty(KEY_RUN_START, String.valueOf(inTime));
+        write();
+    }
+
+    public synchronized void saveWatermark(long inTime) {
+
+        values.setProperty(KEY_WATERMARK, String.valueOf(inTime));
+        write();
+    }
+
+    protected long getLong(String inKey) {
+
+        String value = values.getProperty(inKey);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Written in a temp. file then renamed, so a crash never leaves a partial checkpoint
+    protected void write() {
+
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            log.error("Cannot create <" + dir + ">, checkpoint not saved");
+            return;
+        }
+
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            values.store(out, "UpdatePicturesOp checkpoint");
+        } catch (IOException e) {
+            log.error("Cannot write the checkpoint <" + tmp + ">", e);
+            return;
+        }
+
+        if (!tmp.renameTo(file)) {
+            // Windows does not rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                log.error("Cannot rename <" + tmp + "> to <" + file + ">, checkpoint not saved");
+            }
+        }
+    }
+
+}
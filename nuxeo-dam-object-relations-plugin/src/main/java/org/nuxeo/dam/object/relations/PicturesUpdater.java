@@ -0,0 +1,284 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.security.Principal;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.datademo.tools.DocumentsCallback;
+import org.nuxeo.datademo.tools.DocumentsWalker;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Walks the Pictures returned by a query and builds their relations, committing regularly (see
+ * {@link TransactionBatcher}). Used by {@link UpdatePicturesOp}, either in the caller's session or, as a
+ * {@link Callable}, in a worker thread with its own session and transaction (one worker per partition of the
+ * Pictures).
+ * <p>
+ * Pictures are walked in <code>ecm:uuid</code> order, and, if a {@link PicturesUpdateCheckpoint} is set, the progress
+ * is saved after each commit. When resuming, the walk starts after the last saved uuid.
+ *
+ * @since 7.4
+ */
+public class PicturesUpdater implements Callable<PicturesUpdater> {
+
+    private static final Log log = LogFactory.getLog(PicturesUpdater.class);
+
+    protected static final int PAGE_SIZE = 1000;
+
+
+    protected final String label;
+
+    protected final String nxql;
+
+    protected final boolean bulk;
+
+    protected String repositoryName;
+
+    protected Principal principal;
+
+    protected CoreSession session;
+
+    protected long documentCount = 0;
+
+    protected long countSaved = 0;
+
+    protected boolean failed = false;
+
+    protected PicturesUpdateCheckpoint checkpoint;
+
+    protected boolean resume = false;
+
+    // Last document processed
+    protected String lastUuid;
+
+    // Decides when to commit (saved, visited documents, time)
+    protected TransactionBatcher batcher;
+
+    // Reused for every document
+    protected AssetTitleParser.ParsedTitle parsedTitle = new AssetTitleParser.ParsedTitle();
+
+    protected BulkAssetRelationsBuilder bulkBuilder;
+
+    /**
+     * @param inLabel used in the logs
+     * @param inNxql the query returning the Pictures to update. Must not have an ORDER BY clause (documents are
+     *            sorted by uuid)
+     * @param inBulk if true, relations are resolved page per page (see {@link BulkAssetRelationsBuilder})
+     */
+    public PicturesUpdater(String inLabel, String inNxql, boolean inBulk) {
+        label = inLabel;
+        nxql = inNxql;
+        bulk = inBulk;
+        batcher = new TransactionBatcher(inLabel);
+    }
+
+    /**
+     * Sets what is needed to open a session when run as a {@link Callable}
+     */
+    public PicturesUpdater withSessionInfo(String inRepositoryName, Principal inPrincipal) {
+        repositoryName = inRepositoryName;
+        principal = inPrincipal;
+        return this;
+    }
+
+    /**
+     * Saves the progress in <code>inCheckpoint</code>. The label is used as key, so it must be the same from one run to
+     * another.
+     *
+     * @param inResume if true, starts from the last saved checkpoint
+     */
+    public PicturesUpdater withCheckpoint(PicturesUpdateCheckpoint inCheckpoint, boolean inResume) {
+        checkpoint = inCheckpoint;
+        resume = inResume;
+        return this;
+    }
+
+    /**
+     * Runs in its own transaction and session. Used when running in a worker thread.
+     */
+    @Override
+    public PicturesUpdater call() {
+
+        TransactionHelper.startTransaction();
+        try {
+            try (CoreSession workerSession = CoreInstance.openCoreSession(repositoryName, principal)) {
+                run(workerSession);
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            TransactionHelper.setTransactionRollbackOnly();
+            log.error(label + ": Error while updating Pictures", e);
+        } finally {
+            TransactionHelper.commitOrRollbackTransaction();
+        }
+
+        return this;
+    }
+
+    /**
+     * Walks the Pictures using <code>inSession</code>, in the current transaction (committed regularly).
+     */
+    public void run(CoreSession inSession) {
+
+        session = inSession;
+
+        String query = nxql;
+        if (checkpoint != null && resume) {
+            if (checkpoint.isDone(label)) {
+                documentCount = checkpoint.getDocumentCount(label);
+                countSaved = checkpoint.getCountSaved(label);
+                log.warn(label + ": Already done in the previous run");
+                return;
+            }
+            lastUuid = checkpoint.getLastUuid(label);
+            if (lastUuid != null) {
+                documentCount = checkpoint.getDocumentCount(label);
+                countSaved = checkpoint.getCountSaved(label);
+                query += " AND ecm:uuid > " + NXQL.escapeString(lastUuid);
+                log.warn(label + ": Resuming after " + documentCount + " documents");
+            }
+        }
+        query += " ORDER BY ecm:uuid";
+
+        DocumentsWalker dw = new DocumentsWalker(session, query, PAGE_SIZE);
+        UpdateDataWalkerCallback walkerCallback = new UpdateDataWalkerCallback();
+        if (bulk) {
+            bulkBuilder = new BulkAssetRelationsBuilder(session);
+            dw.runForEachPage(walkerCallback);
+        } else {
+            dw.runForEachDocument(walkerCallback);
+        }
+
+        if (!failed) {
+            commitAndCheckpoint(true);
+        }
+
+        if (bulkBuilder != null) {
+            log.warn(label + ": Bulk: " + bulkBuilder.getQueryCount() + " queries, " + bulkBuilder.getCreatedCount()
+                    + " targets created");
+        }
+    }
+
+    protected class UpdateDataWalkerCallback implements DocumentsCallback {
+
+        ReturnStatus lastReturnStatus;
+
+        @Override
+        public ReturnStatus callback(List<DocumentModel> inDocs) {
+
+            documentCount += inDocs.size();
+            try {
+                doUpdatePage(inDocs);
+            } catch (Exception e) {
+                log.error(label + ": Error while updating a page of documents", e);
+                failed = true;
+                return ReturnStatus.STOP;
+            }
+
+            return ReturnStatus.CONTINUE;
+        }
+
+        @Override
+        public ReturnStatus callback(DocumentModel inDoc) {
+
+            documentCount += 1;
+            try {
+                doUpdateDoc(inDoc);
+            } catch (Exception e) {
+                log.error(label + ": Error while updating a document", e);
+                failed = true;
+                return ReturnStatus.STOP;
+            }
+
+            return ReturnStatus.CONTINUE;
+
+        }
+
+        @Override
+        public void init() {
+            // Unused here
+        }
+
+        @Override
+        public void end(ReturnStatus inLastReturnStatus) {
+            lastReturnStatus = inLastReturnStatus;
+        }
+
+    }
+
+    protected void doUpdatePage(List<DocumentModel> inDocs) {
+
+        int saved = bulkBuilder.run(inDocs);
+        lastUuid = inDocs.get(inDocs.size() - 1).getId();
+        countSaved += saved;
+        if (batcher.add(inDocs.size(), saved)) {
+            commitAndCheckpoint(false);
+        }
+    }
+
+    protected void doUpdateDoc(DocumentModel inDoc) {
+
+        AssetRelationsBuilder arb = new AssetRelationsBuilder(inDoc, session, parsedTitle);
+        inDoc = arb.run();
+        lastUuid = inDoc.getId();
+        int saved = arb.docWasModifiedAndSaved() ? 1 : 0;
+        countSaved += saved;
+        if (batcher.add(1, saved)) {
+            commitAndCheckpoint(false);
+        }
+
+    }
+
+    /*
+     * The checkpoint is saved only once the transaction is committed: Resuming never skips a document whose changes
+     * were lost.
+     */
+    protected void commitAndCheckpoint(boolean inDone) {
+
+        batcher.commit();
+        log.warn(label + ": Visited: " + documentCount + ", updated: " + countSaved);
+
+        if (checkpoint != null) {
+            checkpoint.save(label, lastUuid, documentCount, countSaved, inDone);
+        }
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getDocumentCount() {
+        return documentCount;
+    }
+
+    public long getCountSaved() {
+        return countSaved;
+    }
+
+    public boolean hasFailed() {
+        return failed;
+    }
+
+}
@@ -0,0 +1,289 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.Environment;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Local disk cache of the presentations built by {@link GeneratePresentationOp}: the PDF and the zipped mini-site.
+ * <p>
+ * The key is computed from the content (see {@link #computeKey(PresentationLayout, String, List)}): the digests of
+ * the pictures, in grid order, the layout (including its style and orientation) and the title. The same selection
+ * printed again returns the stored files, without exporting, zipping and running wkhtmltopdf.
+ * <p>
+ * Each entry is a folder of the data directory, named after its key. When the total size exceeds
+ * {@link #MAX_SIZE_PROP}, the least recently used entries are removed. The last use is also stored as the last
+ * modification date of the folder, so the order is kept after a restart.
+ *
+ * @since 7.4
+ */
+public class PresentationCache {
+
+    private static final Log log = LogFactory.getLog(PresentationCache.class);
+
+    /**
+     * Max. size of the cache, in MB. 0 disables the cache.
+     */
+    public static final String MAX_SIZE_PROP = "dam.object.relations.presentation.cache.size.mb";
+
+    public static final int DEFAULT_MAX_SIZE_MB = 1024;
+
+    protected static final String DIRECTORY_NAME = "presentations";
+
+    protected static final String PDF_FILE = "presentation.pdf";
+
+    protected static final String SITE_FILE = "site.zip";
+
+    protected static final String TMP_PREFIX = ".tmp-";
+
+    protected static volatile PresentationCache instance;
+
+    protected final File folder;
+
+    protected final long maxSize;
+
+    // Key => size of the entry, in access order (LRU first)
+    protected final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    protected long totalSize = 0;
+
+    public static PresentationCache get() {
+
+        if (instance == null) {
+            synchronized (PresentationCache.class) {
+                if (instance == null) {
+                    File dir = new File(Environment.getDefault().getData(),
+                            AssetRelationsCaches.DATA_DIRECTORY_NAME);
+                    instance = new PresentationCache(new File(dir, DIRECTORY_NAME),
+                            AssetRelationsCaches.getIntProperty(MAX_SIZE_PROP, DEFAULT_MAX_SIZE_MB) * 1024L * 1024L);
+                }
+            }
+        }
+        return instance;
+    }
+
+    protected PresentationCache(File inFolder, long inMaxSize) {
+
+        folder = inFolder;
+        maxSize = inMaxSize;
+        if (isEnabled()) {
+            load();
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * @return the key of a presentation of <code>inImages</code> (in this order), or null if one of the blobs has no
+     *         digest (the content is unknown, it can't be cached)
+     */
+    public static String computeKey(PresentationLayout inLayout, String inTitle, List<Blob> inImages) {
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        update(md, inLayout.getFingerprint());
+        update(md, inTitle == null ? "" : inTitle);
+        for (Blob image : inImages) {
+            String digest = image.getDigest();
+            if (digest == null) {
+                return null;
+            }
+            update(md, digest);
+        }
+
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    // Separated, so ("ab", "c") and ("a", "bc") don't give the same key
+    protected static void update(MessageDigest inMd, String inValue) {
+        inMd.update(inValue.getBytes(StandardCharsets.UTF_8));
+        inMd.update((byte) 0);
+    }
+
+    public synchronized boolean contains(String inKey) {
+        return entries.containsKey(inKey);
+    }
+
+    /**
+     * Copies the cached PDF and mini-site of <code>inKey</code>, if any, to the target files.
+     *
+     * @return false if there is nothing in the cache for this key
+     */
+    public boolean restore(String inKey, File inPdfTarget, File inSiteTarget) throws IOException {
+
+        File entryFolder = new File(folder, inKey);
+        // Only the check and the LRU touch hold the lock, the files are copied outside (as in put())
+        synchronized (this) {
+            if (entries.get(inKey) == null) {
+                return false;
+            }
+            entryFolder.setLastModified(System.currentTimeMillis());
+        }
+
+        File pdf = new File(entryFolder, PDF_FILE);
+        File site = new File(entryFolder, SITE_FILE);
+        try {
+            Files.copy(pdf.toPath(), inPdfTarget.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(site.toPath(), inSiteTarget.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            // Evicted while copying, or removed by someone else
+            synchronized (this) {
+                if (entries.containsKey(inKey) && (!pdf.isFile() || !site.isFile())) {
+                    remove(inKey);
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stores a copy of the files. Does nothing if the key is already cached, or if the files are bigger than the whole
+     * cache.
+     */
+    public void put(String inKey, File inPdf, File inSite) throws IOException {
+
+        long size = inPdf.length() + inSite.length();
+        if (size > maxSize) {
+            return;
+        }
+        synchronized (this) {
+            if (entries.containsKey(inKey)) {
+                return;
+            }
+        }
+
+        // Copied outside the lock, then renamed: A restore never sees a partial entry
+        File tmpFolder = new File(folder, TMP_PREFIX + UUID.randomUUID().toString());
+        FileUtils.forceMkdir(tmpFolder);
+        try {
+            Files.copy(inPdf.toPath(), new File(tmpFolder, PDF_FILE).toPath());
+            Files.copy(inSite.toPath(), new File(tmpFolder, SITE_FILE).toPath());
+
+            synchronized (this) {
+                File entryFolder = new File(folder, inKey);
+                if (entries.containsKey(inKey) || entryFolder.exists()) {
+                    return;
+                }
+                Files.move(tmpFolder.toPath(), entryFolder.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                entries.put(inKey, size);
+                totalSize += size;
+                evict();
+            }
+        } finally {
+            if (tmpFolder.exists()) {
+                FileUtils.deleteQuietly(tmpFolder);
+            }
+        }
+    }
+
+    protected synchronized void evict() {
+
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            totalSize -= eldest.getValue();
+            FileUtils.deleteQuietly(new File(folder, eldest.getKey()));
+        }
+    }
+
+    protected synchronized void remove(String inKey) {
+
+        Long size = entries.remove(inKey);
+        if (size != null) {
+            totalSize -= size;
+        }
+        FileUtils.deleteQuietly(new File(folder, inKey));
+    }
+
+    public synchronized void clear() {
+
+        for (String key : entries.keySet()) {
+            FileUtils.deleteQuietly(new File(folder, key));
+        }
+        entries.clear();
+        totalSize = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    // The entries of a previous run, least recently used first. Removes what an interrupted put() left
+    protected synchronized void load() {
+
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File inFile1, File inFile2) {
+                return Long.compare(inFile1.lastModified(), inFile2.lastModified());
+            }
+        });
+
+        for (File file : files) {
+            if (file.getName().startsWith(TMP_PREFIX)) {
+                FileUtils.deleteQuietly(file);
+            } else if (file.isDirectory()) {
+                long size = new File(file, PDF_FILE).length() + new File(file, SITE_FILE).length();
+                entries.put(file.getName(), size);
+                totalSize += size;
+            }
+        }
+        evict();
+        log.debug("Presentation cache: " + entries.size() + " entries, " + totalSize + " bytes");
+    }
+
+}
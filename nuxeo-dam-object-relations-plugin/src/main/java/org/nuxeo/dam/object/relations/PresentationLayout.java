@@ -0,0 +1,185 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A {@link PresentationLayoutDescriptor}, compiled once at registration: The templates are split around their
+ * variables, so rendering is only a sequence of writes. Nothing is accumulated in memory, whatever the number of
+ * images. Immutable, can be used by several threads.
+ *
+ * @since 7.4
+ */
+public class PresentationLayout {
+
+    public static final String TITLE_VARIABLE = "${title}";
+
+    // Replaced with the path of the image, relative to index.html ("img/img-1.jpg")
+    public static final String IMAGE_VARIABLE = "${image}";
+
+    public static final String IMAGE_FOLDER = "img/";
+
+    protected final String name;
+
+    protected final String orientation;
+
+    protected final int imagesPerPage;
+
+    protected final int cellWidth;
+
+    protected final int cellHeight;
+
+    // The whole page up to the title (included), pre-rendered
+    protected final String head;
+
+    protected final Template titleTemplate;
+
+    protected final Template imageTemplate;
+
+    // Everything that changes the rendering, see #getFingerprint()
+    protected final String fingerprint;
+
+    protected static final String FOOT = "</div>\n</body>\n</html>\n";
+
+    /**
+     * @throws IllegalArgumentException if the descriptor is not valid
+     */
+    public PresentationLayout(PresentationLayoutDescriptor inDesc) {
+
+        if (StringUtils.isBlank(inDesc.getName())) {
+            throw new IllegalArgumentException("A presentation layout must have a name");
+        }
+        name = inDesc.getName();
+
+        String descOrientation = inDesc.getOrientation();
+        if ("landscape".equalsIgnoreCase(descOrientation)) {
+            orientation = "Landscape";
+        } else if (StringUtils.isBlank(descOrientation) || "portrait".equalsIgnoreCase(descOrientation)) {
+            orientation = "Portrait";
+        } else {
+            throw new IllegalArgumentException("Layout <" + name + ">: unknown orientation <" + descOrientation + ">");
+        }
+
+        imagesPerPage = Math.max(0, inDesc.getImagesPerPage());
+        cellWidth = Math.max(0, inDesc.getCellWidth());
+        cellHeight = Math.max(0, inDesc.getCellHeight());
+
+        head = "<!DOCTYPE html><html><head><meta charset='utf-8'><style>\n"
+                + (inDesc.getStyle() == null ? "" : inDesc.getStyle()) + "\n</style></head><body>\n"
+                + "<div id='mainCont' class='mainContainer'>\n";
+        titleTemplate = new Template(name, inDesc.getTitleTemplate(), TITLE_VARIABLE);
+        imageTemplate = new Template(name, inDesc.getImageTemplate(), IMAGE_VARIABLE);
+        fingerprint = name + '\u0000' + orientation + '\u0000' + head + '\u0000' + inDesc.getTitleTemplate() + '\u0000'
+                + inDesc.getImageTemplate();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return the number of images of a full page, or 0 if unknown
+     */
+    public int getImagesPerPage() {
+        return imagesPerPage;
+    }
+
+    /**
+     * @return the max. width of a picture in the grid, in CSS pixels, or 0 if unknown
+     */
+    public int getCellWidth() {
+        return cellWidth;
+    }
+
+    /**
+     * @return the max. height of a picture in the grid, in CSS pixels, or 0 if unknown
+     */
+    public int getCellHeight() {
+        return cellHeight;
+    }
+
+    /**
+     * @return a string that changes when the layout is contributed again with a different style, orientation or
+     *         template (used as part of the key of the {@link PresentationCache})
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Writes the whole index.html of the mini-site. <code>inImageNames</code> are the names of the files in the img/
+     * folder, in grid order.
+     */
+    public void render(Writer inWriter, String inTitle, List<String> inImageNames) throws IOException {
+
+        inWriter.write(head);
+        if (StringUtils.isNotBlank(inTitle)) {
+            titleTemplate.write(inWriter, "", inTitle);
+            inWriter.write('\n');
+        }
+        for (String imageName : inImageNames) {
+            imageTemplate.write(inWriter, IMAGE_FOLDER, imageName);
+            inWriter.write('\n');
+        }
+        inWriter.write(FOOT);
+    }
+
+    /*
+     * The literal parts of a template, around its variable (which can appear several times, or not at all)
+     */
+    protected static class Template {
+
+        protected final String[] parts;
+
+        protected Template(String inLayoutName, String inTemplate, String inVariable) {
+
+            if (inTemplate == null) {
+                throw new IllegalArgumentException("Layout <" + inLayoutName + ">: no template for " + inVariable);
+            }
+            List<String> split = new ArrayList<String>();
+            int start = 0;
+            int pos;
+            while ((pos = inTemplate.indexOf(inVariable, start)) >= 0) {
+                split.add(inTemplate.substring(start, pos));
+                start = pos + inVariable.length();
+            }
+            split.add(inTemplate.substring(start));
+            parts = split.toArray(new String[split.size()]);
+        }
+
+        protected void write(Writer inWriter, String inPrefix, String inValue) throws IOException {
+
+            inWriter.write(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                inWriter.write(inPrefix);
+                inWriter.write(inValue);
+                inWriter.write(parts[i]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * A layout of {@link GeneratePresentationOp}, contributed to the "layouts" extension point of
+ * {@link PresentationLayoutService}. Example:
+ *
+ * <pre>
+ * {@code
+ * <layout name="3x3">
+ *   <orientation>Portrait</orientation>
+ *   <imagesPerPage>9</imagesPerPage>
+ *   <cellWidth>310</cellWidth>
+ *   <cellHeight>370</cellHeight>
+ *   <style>.floating-box {float: left;width: 310px;height: 370px;} ...</style>
+ *   <imageTemplate><![CDATA[<div class='floating-box'><img src='${image}'></div>]]></imageTemplate>
+ * </layout>
+ * }
+ * </pre>
+ * <code>titleTemplate</code> (<code>${title}</code> being the title) and <code>imageTemplate</code> have default
+ * values, each is written on its own line. Only the name is required. A contribution with the name of an existing layout replaces it, and removes it if
+ * <code>enabled</code> is false.
+ *
+ * @since 7.4
+ */
+@XObject("layout")
+public class PresentationLayoutDescriptor {
+
+    public static final String DEFAULT_TITLE_TEMPLATE = "<h2 style='text-align: center;'>"
+            + PresentationLayout.TITLE_VARIABLE + "</h2>";
+
+    public static final String DEFAULT_IMAGE_TEMPLATE = "<div class='floating-box keeptogether'><img src='"
+            + PresentationLayout.IMAGE_VARIABLE + "' class='imgThumb'></div>";
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    // Used when the requested layout does not exist
+    @XNode("@default")
+    protected boolean defaultLayout = false;
+
+    // "Portrait" or "Landscape", passed to wkhtmltopdf
+    @XNode("orientation")
+    protected String orientation = "Portrait";
+
+    // Max. size of a picture in the grid, in CSS pixels. Used to select the smallest picture view that is big enough
+    @XNode("cellWidth")
+    protected int cellWidth = 0;
+
+    @XNode("cellHeight")
+    protected int cellHeight = 0;
+
+    @XNode("style")
+    protected String style = "";
+
+    // Used to render big presentations in chunks of whole pages. 0 (unknown) => never in chunks
+    @XNode("imagesPerPage")
+    protected int imagesPerPage = 0;
+
+    @XNode("titleTemplate")
+    protected String titleTemplate = DEFAULT_TITLE_TEMPLATE;
+
+    @XNode("imageTemplate")
+    protected String imageTemplate = DEFAULT_IMAGE_TEMPLATE;
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isDefault() {
+        return defaultLayout;
+    }
+
+    public String getOrientation() {
+        return orientation;
+    }
+
+    public int getImagesPerPage() {
+        return imagesPerPage;
+    }
+
+    public int getCellWidth() {
+        return cellWidth;
+    }
+
+    public int getCellHeight() {
+        return cellHeight;
+    }
+
+    public String getStyle() {
+        return style;
+    }
+
+    public String getTitleTemplate() {
+        return titleTemplate;
+    }
+
+    public String getImageTemplate() {
+        return imageTemplate;
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.util.List;
+
+/**
+ * The layouts of {@link GeneratePresentationOp}, contributed to the "layouts" extension point (see
+ * {@link PresentationLayoutDescriptor}). Layouts are compiled once, when contributed.
+ *
+ * @since 7.4
+ */
+public interface PresentationLayoutService {
+
+    /**
+     * @param inName the name of the layout, case insensitive
+     * @return the layout, or the default layout if there is no layout with this name (or null if there is no default
+     *         layout either)
+     */
+    PresentationLayout getLayout(String inName);
+
+    /**
+     * @return the names of the layouts, sorted
+     */
+    List<String> getLayoutNames();
+
+}
@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * @since 7.4
+ */
+public class PresentationLayoutServiceImpl extends DefaultComponent implements PresentationLayoutService {
+
+    private static final Log log = LogFactory.getLog(PresentationLayoutServiceImpl.class);
+
+    public static final String LAYOUTS_XP = "layouts";
+
+    // Lower case name => layout
+    protected final ConcurrentMap<String, PresentationLayout> layouts = new ConcurrentHashMap<>();
+
+    protected volatile String defaultLayoutName;
+
+    @Override
+    public void registerContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
+
+        if (!LAYOUTS_XP.equals(extensionPoint)) {
+            log.error("Unknown extension point <" + extensionPoint + ">");
+            return;
+        }
+
+        PresentationLayoutDescriptor desc = (PresentationLayoutDescriptor) contribution;
+        if (desc.getName() == null) {
+            log.error("A presentation layout has no name, it is ignored");
+            return;
+        }
+        String key = desc.getName().toLowerCase();
+        if (!desc.isEnabled()) {
+            layouts.remove(key);
+            return;
+        }
+
+        PresentationLayout layout;
+        try {
+            layout = new PresentationLayout(desc);
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid presentation layout, it is ignored: " + e.getMessage());
+            return;
+        }
+        layouts.put(key, layout);
+        if (desc.isDefault()) {
+            defaultLayoutName = key;
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
+
+        if (LAYOUTS_XP.equals(extensionPoint)) {
+            PresentationLayoutDescriptor desc = (PresentationLayoutDescriptor) contribution;
+            if (desc.getName() != null) {
+                layouts.remove(desc.getName().toLowerCase());
+            }
+        }
+    }
+
+    @Override
+    public PresentationLayout getLayout(String inName) {
+
+        PresentationLayout layout = inName == null ? null : layouts.get(inName.toLowerCase());
+        if (layout == null && defaultLayoutName != null) {
+            layout = layouts.get(defaultLayoutName);
+        }
+        return layout;
+    }
+
+    @Override
+    public List<String> getLayoutNames() {
+
+        List<String> names = new ArrayList<String>();
+        for (PresentationLayout layout : layouts.values()) {
+            names.add(layout.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+}
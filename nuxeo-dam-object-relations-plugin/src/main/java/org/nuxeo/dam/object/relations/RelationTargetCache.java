@@ -0,0 +1,474 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.naming.NamingException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * A bounded, concurrent cache of "natural key" => document id, used to avoid querying again and again for the same
+ * relation target (License, ArtFileNumber, ...).
+ * <p>
+ * Entries are split in segments, each of them being a small LRU map with its own lock. An entry also expires after a
+ * while: Documents can be modified or removed on another node of a cluster, where the invalidation events of this node
+ * are not received.
+ * <p>
+ * A "not found" result can also be cached (see {@link #putNotFound(String)}), with a shorter time to live. It is
+ * replaced as soon as the target is created (see {@link RelationTargetCacheListener}).
+ * <p>
+ * Creation of a target goes through {@link #createOnce(String, Creator)}, which uses a lock per key (striped), so
+ * concurrent sessions of this node never create the same target twice. The creator commits the target before
+ * returning (see {@link RelationTargetResolver}), so the lock is only held for this short transaction.
+ * <p>
+ * The id of a target created by the current transaction is only visible to this transaction until it is committed
+ * (see {@link #putAfterCommit(String, String)}): If it is rolled back, no other session links an asset to a document
+ * which does not exist.
+ *
+ * @since 7.4
+ */
+public class RelationTargetCache {
+
+    private static final Log log = LogFactory.getLog(RelationTargetCache.class);
+
+    protected static final int SEGMENTS_COUNT = 16;
+
+    protected static final int LOCKS_COUNT = 64;
+
+    // Separates the parts of a key. Not expected in a title, a code, ...
+    protected static final char KEY_SEPARATOR = '\u001F';
+
+    /**
+     * Returned by {@link #get(String)} when the target is known to not exist
+     */
+    public static final String NOT_FOUND = "\u0000NOT_FOUND";
+
+    protected final String name;
+
+    protected final long ttlMillis;
+
+    protected final long notFoundTtlMillis;
+
+    protected final Segment[] segments;
+
+    protected final ReentrantLock[] locks;
+
+    protected final AtomicLong hitCount = new AtomicLong();
+
+    protected final AtomicLong missCount = new AtomicLong();
+
+    protected final AtomicLong notFoundHitCount = new AtomicLong();
+
+    public RelationTargetCache(String inName, int inMaxSize, long inTtlMillis) {
+        this(inName, inMaxSize, inTtlMillis, 0);
+    }
+
+    public RelationTargetCache(String inName, int inMaxSize, long inTtlMillis, long inNotFoundTtlMillis) {
+
+        name = inName;
+        ttlMillis = inTtlMillis;
+        notFoundTtlMillis = inNotFoundTtlMillis;
+
+        int segmentMaxSize = Math.max(1, inMaxSize / SEGMENTS_COUNT);
+        segments = new Segment[SEGMENTS_COUNT];
+        for (int i = 0; i < SEGMENTS_COUNT; i++) {
+            segments[i] = new Segment(segmentMaxSize);
+        }
+
+        locks = new ReentrantLock[LOCKS_COUNT];
+        for (int i = 0; i < LOCKS_COUNT; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public static String buildKey(Object... inParts) {
+
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < inParts.length; i++) {
+            if (i > 0) {
+                sb.append(KEY_SEPARATOR);
+            }
+            sb.append(inParts[i]);
+        }
+        return sb.toString();
+    }
+
+    protected static int hash(String inKey) {
+        int h = inKey.hashCode();
+        h ^= (h >>> 16);
+        return h & 0x7FFFFFFF;
+    }
+
+    protected Segment segmentFor(String inKey) {
+        return segments[hash(inKey) % SEGMENTS_COUNT];
+    }
+
+    // Different bits than segmentFor(), so a lock is not tied to a segment
+    protected ReentrantLock lockFor(String inKey) {
+        return locks[(hash(inKey) / SEGMENTS_COUNT) % LOCKS_COUNT];
+    }
+
+    // No stats
+    protected String lookup(String inKey) {
+
+        CachedValue entry = lookupEntry(inKey);
+        return entry == null ? null : entry.value;
+    }
+
+    protected CachedValue lookupEntry(String inKey) {
+
+        Segment segment = segmentFor(inKey);
+        synchronized (segment) {
+            CachedValue entry = segment.get(inKey);
+            if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * @return the cached id, {@link #NOT_FOUND} if the target is known to not exist, or null if not cached (or
+     *         expired)
+     */
+    public String get(String inKey) {
+
+        String created = getCreatedInTransaction(inKey);
+        if (created != null) {
+            hitCount.incrementAndGet();
+            return created;
+        }
+
+        Segment segment = segmentFor(inKey);
+        CachedValue entry;
+        synchronized (segment) {
+            entry = segment.get(inKey);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                segment.remove(inKey);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (entry.value == NOT_FOUND) {
+            notFoundHitCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return entry.value;
+    }
+
+    public void put(String inKey, String inValue) {
+
+        Segment segment = segmentFor(inKey);
+        synchronized (segment) {
+            long now = System.currentTimeMillis();
+            segment.put(inKey, new CachedValue(inValue, now, now + ttlMillis));
+        }
+    }
+
+    /**
+     * Remembers that there is no document for <code>inKey</code>. Does nothing if "not found" results are not cached
+     * (time to live is 0).
+     * <p>
+     * An id already cached is never replaced: It may have been put by another session after the caller queried the
+     * repository, and the caller's "not found" is then outdated.
+     */
+    public void putNotFound(String inKey) {
+
+        if (notFoundTtlMillis <= 0) {
+            return;
+        }
+        Segment segment = segmentFor(inKey);
+        synchronized (segment) {
+            long now = System.currentTimeMillis();
+            CachedValue entry = segment.get(inKey);
+            if (entry == null || entry.value == NOT_FOUND || entry.expiresAt < now) {
+                segment.put(inKey, new CachedValue(NOT_FOUND, now, now + notFoundTtlMillis));
+            }
+        }
+    }
+
+    /**
+     * Caches the id of a document created in the current transaction. Until the transaction is committed, the id is
+     * only returned to this transaction, other sessions don't see it. If there is no transaction, the value is just
+     * cached.
+     */
+    public void putAfterCommit(String inKey, String inValue) {
+
+        if (!TransactionHelper.isTransactionActive()) {
+            put(inKey, inValue);
+            return;
+        }
+
+        TransactionCreations creations = getTransactionCreations(true);
+        if (creations == null) {
+            // Safer to not keep it (and to forget a "not found")
+            log.debug("Cannot register a synchronization, <" + inKey + "> is not cached");
+            invalidate(inKey);
+            return;
+        }
+        creations.add(inKey, inValue);
+    }
+
+    protected String getCreatedInTransaction(String inKey) {
+
+        TransactionCreations creations = getTransactionCreations(false);
+        return creations == null ? null : creations.get(inKey);
+    }
+
+    /*
+     * The ids created by the current transaction in this cache. A single synchronization is registered per transaction,
+     * by the first creation. Returns null if there is no transaction
+     */
+    protected TransactionCreations getTransactionCreations(boolean inCreate) {
+
+        if (!TransactionHelper.isTransactionActive()) {
+            return null;
+        }
+
+        try {
+            TransactionSynchronizationRegistry registry = TransactionHelper.lookupSynchronizationRegistry();
+            TransactionCreations creations = (TransactionCreations) registry.getResource(this);
+            if (creations == null && inCreate) {
+                creations = new TransactionCreations();
+                registry.registerInterposedSynchronization(creations);
+                registry.putResource(this, creations);
+            }
+            return creations;
+        } catch (NamingException | IllegalStateException e) {
+            log.debug("No transaction synchronization registry", e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the target using <code>inCreator</code>, unless it was created (and cached) by another thread in the
+     * meantime. For a given key, only one thread at a time runs this method.
+     * <p>
+     * The caller is expected to have checked the cache and queried the repository before: This is not done again here.
+     * A "not found" cached while this thread was waiting for the lock is not trusted (it may come from a session which
+     * queried before the target was created), it is removed and <code>inCreator</code> checks the repository again.
+     * <p>
+     * <code>inCreator</code> must commit the target before returning: Its id is cached for all the sessions at once.
+     *
+     * @return the id of the target
+     */
+    public String createOnce(String inKey, Creator inCreator) {
+
+        String id = getCreatedInTransaction(inKey);
+        if (id != null) {
+            return id;
+        }
+
+        long waitStart = System.currentTimeMillis();
+        ReentrantLock lock = lockFor(inKey);
+        lock.lock();
+        try {
+            CachedValue entry = lookupEntry(inKey);
+            if (entry != null && entry.value != NOT_FOUND) {
+                return entry.value;
+            }
+            if (entry != null && entry.createdAt >= waitStart) {
+                invalidate(inKey);
+            }
+
+            inCreator.created = true;
+            id = inCreator.create();
+            put(inKey, id);
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(String inKey) {
+
+        Segment segment = segmentFor(inKey);
+        synchronized (segment) {
+            segment.remove(inKey);
+        }
+    }
+
+    /**
+     * Removes all the entries whose value is <code>inValue</code>. Used when we know a document was modified, but not
+     * which key was pointing to it.
+     */
+    public void invalidateValue(String inValue) {
+
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                Iterator<CachedValue> it = segment.values().iterator();
+                while (it.hasNext()) {
+                    if (inValue.equals(it.next().value)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getNotFoundHitCount() {
+        return notFoundHitCount.get();
+    }
+
+    public String getStatsAsString() {
+        return name + ": " + size() + " entries, " + hitCount.get() + " hits, " + notFoundHitCount.get()
+                + " not-found hits, " + missCount.get() + " misses";
+    }
+
+    /**
+     * Creates a relation target, see {@link RelationTargetCache#createOnce(String, Creator)}
+     */
+    public static abstract class Creator {
+
+        protected boolean created = false;
+
+        /**
+         * @return the id of the created document (or of the existing one, see {@link #notCreated(String)})
+         */
+        public abstract String create();
+
+        /**
+         * To be returned by {@link #create()} when, after all, the target already exists (created by another node for
+         * example)
+         */
+        protected String notCreated(String inExistingId) {
+            created = false;
+            return inExistingId;
+        }
+
+        /**
+         * @return true if the target was created by this creator (and not by another thread)
+         */
+        public boolean wasCreated() {
+            return created;
+        }
+    }
+
+    protected static class CachedValue {
+
+        protected final String value;
+
+        protected final long createdAt;
+
+        protected final long expiresAt;
+
+        protected CachedValue(String inValue, long inCreatedAt, long inExpiresAt) {
+            value = inValue;
+            createdAt = inCreatedAt;
+            expiresAt = inExpiresAt;
+        }
+    }
+
+    /*
+     * Publishes the ids to the shared cache when the transaction is committed, and releases the sessions waiting for
+     * them in any case
+     */
+    protected class TransactionCreations implements Synchronization {
+
+        protected final Map<String, String> ids = new HashMap<String, String>();
+
+        protected synchronized String get(String inKey) {
+            return ids.get(inKey);
+        }
+
+        protected synchronized void add(String inKey, String inValue) {
+            ids.put(inKey, inValue);
+        }
+
+        @Override
+        public void beforeCompletion() {
+            // Nothing to do
+        }
+
+        @Override
+        public synchronized void afterCompletion(int inStatus) {
+
+            if (inStatus == Status.STATUS_COMMITTED) {
+                for (Map.Entry<String, String> entry : ids.entrySet()) {
+                    put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    protected static class Segment extends LinkedHashMap<String, CachedValue> {
+
+        protected final int maxSize;
+
+        protected Segment(int inMaxSize) {
+            // Access order => LRU
+            super(16, 0.75f, true);
+            maxSize = inMaxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedValue> inEldest) {
+            return size() > maxSize;
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.event.DocumentEventTypes;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+
+/**
+ * Keeps the {@link AssetRelationsCaches} up to date:
+ * <ul>
+ * <li>When a relation target (IPcontract, ArtFileNumber, StyleNumber) is created, it is cached once the transaction is
+ * committed, whoever created it</li>
+ * <li>When it is modified or removed, its natural key (year, code, ...) may have changed, so every entry pointing to it
+ * is removed</li>
+ * </ul>
+ *
+ * @since 7.4
+ */
+public class RelationTargetCacheListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) {
+
+        EventContext ctx = event.getContext();
+        if (!(ctx instanceof DocumentEventContext)) {
+            return;
+        }
+
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        if (doc == null || doc.isProxy() || doc.isVersion()) {
+            return;
+        }
+
+        RelationTargetCache cache = getCache(doc.getType());
+        if (cache == null) {
+            return;
+        }
+
+        if (DocumentEventTypes.DOCUMENT_CREATED.equals(event.getName())) {
+            String key = buildKey(doc);
+            if (key != null) {
+                cache.putAfterCommit(key, doc.getId());
+            }
+        } else {
+            cache.invalidateValue(doc.getId());
+        }
+    }
+
+    protected RelationTargetCache getCache(String inDocType) {
+        return AssetRelationsCaches.getCache(inDocType);
+    }
+
+    // Returns null if a value is missing
+    protected String buildKey(DocumentModel inDoc) {
+        return AssetRelationsCaches.keyOf(inDoc);
+    }
+
+}
@@ -0,0 +1,330 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentNotFoundException;
+import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.runtime.api.Framework;
+
+import com.codahale.metrics.Timer;
+
+/**
+ * Idempotent get-or-create of the relation targets (License, ArtFileNumber, StyleNumber), for one session.
+ * <p>
+ * The name of a target is derived from its natural key (see {@link AssetRelationsBuilder#getLicenseName(int, String)},
+ * ...), so finding it is a {@link PathRef} fetch:
+ * <ol>
+ * <li>{@link AssetRelationsCaches}</li>
+ * <li>Fetch by path. The properties of the document are checked, a document created by hand could have the same
+ * name</li>
+ * <li>ArtFileNumbers and StyleNumbers created before 7.4 have an ambiguous name, which is not used anymore (see
+ * {@link AssetRelationsBuilder#getStyleNumberName(String, String, String)}). They are kept, not renamed: They are
+ * fetched by their former path too</li>
+ * <li>Targets created before the names were derived from the key are looked for with NXQL (projection of the id only,
+ * see {@link NxqlBuilder}). This can be disabled
+ * (<code>dam.object.relations.legacy.lookup=false</code>) once they all follow the naming</li>
+ * <li>Else, the target is created via {@link RelationTargetCache#createOnce(String, RelationTargetCache.Creator)}:
+ * One lock per key (striped, not a global one), and the path is fetched again under the lock, in case another node
+ * created it in the meantime</li>
+ * </ol>
+ * A target is created and saved in its own transaction, committed at once (see {@link NewTransactionRunner}): It is
+ * shared by the assets of all the workers, none of them has to wait for the transaction of another one to complete.
+ * The target is kept if the caller's transaction is rolled back, it is just not linked yet.
+ *
+ * @since 7.4
+ */
+public class RelationTargetResolver {
+
+    private static final Log log = LogFactory.getLog(RelationTargetResolver.class);
+
+    public static final String LEGACY_LOOKUP_PROP = "dam.object.relations.legacy.lookup";
+
+    protected static final boolean legacyLookup = !"false".equals(Framework.getProperty(LEGACY_LOOKUP_PROP));
+
+    protected final CoreSession session;
+
+    protected final String repository;
+
+    protected boolean lastWasCreated = false;
+
+    protected int pathFetchCount = 0;
+
+    protected int queryCount = 0;
+
+    protected int createdCount = 0;
+
+    public RelationTargetResolver(CoreSession inSession) {
+        session = inSession;
+        repository = inSession.getRepositoryName();
+    }
+
+    // -------------------- License (IPcontract) --------------------
+    public String getOrCreateLicense(int inYear, String inCode) {
+
+        String key = AssetRelationsCaches.licenseKey(repository, inYear, inCode);
+        String id = find(AssetRelationsCaches.LICENSES, key, getLicensePath(inYear, inCode), null, NxqlBuilder.select(
+                NXQL.ECM_UUID).from("IPcontract").eq("license:year", inYear).eq("license:product_line_code", inCode));
+        return id != null ? id : createLicenseOnce(inYear, inCode);
+    }
+
+    /**
+     * Creates the License, unless it was created in the meantime. The caller already looked for it.
+     */
+    public String createLicenseOnce(final int inYear, final String inCode) {
+
+        final String key = AssetRelationsCaches.licenseKey(repository, inYear, inCode);
+        final PathRef ref = getLicensePath(inYear, inCode);
+        return createOnce(AssetRelationsCaches.LICENSES, key, new NewTransactionCreator(ref, key) {
+            @Override
+            protected DocumentModel createTarget(CoreSession inSession) {
+                return AssetRelationsBuilder.createLicense(inSession, inYear, inCode);
+            }
+        });
+    }
+
+    protected PathRef getLicensePath(int inYear, String inCode) {
+        return new PathRef(AssetRelationsBuilder.getIpContractRootPath(session), AssetRelationsBuilder.getLicenseName(
+                inYear, inCode));
+    }
+
+    // -------------------- ArtFileNumber --------------------
+    /**
+     * @param inLookup false if we know it does not exist (the License was just created)
+     */
+    public String getOrCreateArtFileNumber(String inLicenseId, String inNumber, String inName, boolean inLookup) {
+
+        lastWasCreated = false;
+
+        if (inLookup) {
+            String key = AssetRelationsCaches.artFileNumberKey(repository, inLicenseId, inNumber);
+            String id = find(AssetRelationsCaches.ART_FILE_NUMBERS, key, getArtFileNumberPath(inLicenseId, inNumber),
+                    getLegacyArtFileNumberPath(inNumber, inName), NxqlBuilder.select(NXQL.ECM_UUID).from(
+                            "ArtFileNumber").eq("linking:license_id", inLicenseId).eq("art_file_number:number",
+                            inNumber));
+            if (id != null) {
+                return id;
+            }
+        }
+        return createArtFileNumberOnce(inLicenseId, inNumber, inName);
+    }
+
+    public String createArtFileNumberOnce(final String inLicenseId, final String inNumber, final String inName) {
+
+        final String key = AssetRelationsCaches.artFileNumberKey(repository, inLicenseId, inNumber);
+        final PathRef ref = getArtFileNumberPath(inLicenseId, inNumber);
+        return createOnce(AssetRelationsCaches.ART_FILE_NUMBERS, key, new NewTransactionCreator(ref, key) {
+            @Override
+            protected DocumentModel createTarget(CoreSession inSession) {
+                return AssetRelationsBuilder.createArtFileNumber(inSession, inLicenseId, inNumber, inName);
+            }
+        });
+    }
+
+    protected PathRef getArtFileNumberPath(String inLicenseId, String inNumber) {
+        return new PathRef(AssetRelationsBuilder.getArtFileNumberContainerPath(session),
+                AssetRelationsBuilder.getArtFileNumberName(inLicenseId, inNumber));
+    }
+
+    protected PathRef getLegacyArtFileNumberPath(String inNumber, String inName) {
+        return new PathRef(AssetRelationsBuilder.getArtFileNumberContainerPath(session),
+                AssetRelationsBuilder.getLegacyArtFileNumberName(inNumber, inName));
+    }
+
+    // -------------------- StyleNumber --------------------
+    public String getOrCreateStyleNumber(String inDepartment, String inNumber, String inName) {
+
+        String key = AssetRelationsCaches.styleNumberKey(repository, inDepartment, inNumber, inName);
+        String id = find(AssetRelationsCaches.STYLE_NUMBERS, key, getStyleNumberPath(inDepartment, inNumber, inName),
+                getLegacyStyleNumberPath(inDepartment, inNumber, inName), NxqlBuilder.select(NXQL.ECM_UUID).from(
+                        "StyleNumber").eq("style_number:department", inDepartment).eq("style_number:number",
+                        inNumber).eq("style_number:short_name", inName));
+        return id != null ? id : createStyleNumberOnce(inDepartment, inNumber, inName);
+    }
+
+    public String createStyleNumberOnce(final String inDepartment, final String inNumber, final String inName) {
+
+        final String key = AssetRelationsCaches.styleNumberKey(repository, inDepartment, inNumber, inName);
+        final PathRef ref = getStyleNumberPath(inDepartment, inNumber, inName);
+        return createOnce(AssetRelationsCaches.STYLE_NUMBERS, key, new NewTransactionCreator(ref, key) {
+            @Override
+            protected DocumentModel createTarget(CoreSession inSession) {
+                return AssetRelationsBuilder.createStyleNumber(inSession, inDepartment, inNumber, inName);
+            }
+        });
+    }
+
+    protected PathRef getStyleNumberPath(String inDepartment, String inNumber, String inName) {
+        return new PathRef(AssetRelationsBuilder.getStyleNumberContainerPath(session),
+                AssetRelationsBuilder.getStyleNumberName(inDepartment, inNumber, inName));
+    }
+
+    protected PathRef getLegacyStyleNumberPath(String inDepartment, String inNumber, String inName) {
+        return new PathRef(AssetRelationsBuilder.getStyleNumberContainerPath(session),
+                AssetRelationsBuilder.getLegacyStyleNumberName(inDepartment, inNumber, inName));
+    }
+
+    // -------------------- Common --------------------
+    /*
+     * Returns null if not found. A cached "not found" skips the repository. inLegacyRef: path of a target created
+     * before 7.4, null if the name did not change
+     */
+    protected String find(RelationTargetCache inCache, String inKey, PathRef inRef, PathRef inLegacyRef,
+            NxqlBuilder inLegacyQuery) {
+
+        lastWasCreated = false;
+
+        String id = inCache.get(inKey);
+        if (id == RelationTargetCache.NOT_FOUND) {
+            return null;
+        }
+        if (id != null) {
+            return id;
+        }
+
+        Timer.Context timer = AssetRelationsMetrics.lookup(inCache.getName()).time();
+        try {
+            DocumentModel doc = fetch(session, inRef, inKey);
+            if (doc == null && inLegacyRef != null) {
+                doc = fetch(session, inLegacyRef, inKey);
+            }
+            id = doc == null ? null : doc.getId();
+            if (id == null && legacyLookup) {
+                queryCount += 1;
+                id = inLegacyQuery.live().fetchFirstValue(session, NXQL.ECM_UUID);
+            }
+        } finally {
+            timer.stop();
+        }
+
+        if (id == null) {
+            inCache.putNotFound(inKey);
+            return null;
+        }
+        inCache.put(inKey, id);
+        return id;
+    }
+
+    /*
+     * Returns null if there is no document at this path, or if it is not the expected target
+     */
+    protected DocumentModel fetch(CoreSession inSession, PathRef inRef, String inKey) {
+
+        pathFetchCount += 1;
+        DocumentModel doc;
+        try {
+            doc = inSession.getDocument(inRef);
+        } catch (DocumentNotFoundException e) {
+            return null;
+        }
+
+        if (!inKey.equals(AssetRelationsCaches.keyOf(doc))) {
+            if (log.isDebugEnabled()) {
+                log.debug("<" + doc.getPathAsString() + "> is not the expected relation target");
+            }
+            return null;
+        }
+        return doc;
+    }
+
+    protected String createOnce(RelationTargetCache inCache, String inKey, RelationTargetCache.Creator inCreator) {
+
+        String id;
+        Timer.Context timer = AssetRelationsMetrics.create(inCache.getName()).time();
+        try {
+            id = inCache.createOnce(inKey, inCreator);
+        } finally {
+            timer.stop();
+        }
+        lastWasCreated = inCreator.wasCreated();
+        if (lastWasCreated) {
+            createdCount += 1;
+        }
+        return id;
+    }
+
+    /**
+     * Creates the target in a new transaction, with an unrestricted session, unless it exists already (the path is
+     * fetched again in the new transaction, another node may have committed it in the meantime)
+     */
+    protected abstract class NewTransactionCreator extends RelationTargetCache.Creator {
+
+        protected final PathRef ref;
+
+        protected final String key;
+
+        protected NewTransactionCreator(PathRef inRef, String inKey) {
+            ref = inRef;
+            key = inKey;
+        }
+
+        /**
+         * Creates (but does not save) the target
+         */
+        protected abstract DocumentModel createTarget(CoreSession inSession);
+
+        @Override
+        public String create() {
+
+            final String[] id = new String[1];
+            NewTransactionRunner.run(new Runnable() {
+                @Override
+                public void run() {
+                    new UnrestrictedSessionRunner(repository) {
+                        @Override
+                        public void run() {
+                            DocumentModel existing = fetch(session, ref, key);
+                            if (existing != null) {
+                                id[0] = notCreated(existing.getId());
+                                return;
+                            }
+                            id[0] = createTarget(session).getId();
+                            session.save();
+                        }
+                    }.runUnrestricted();
+                }
+            });
+            return id[0];
+        }
+    }
+
+    /**
+     * @return true if the last call to a <code>getOrCreate*</code> or <code>create*Once</code> method created the
+     *         target
+     */
+    public boolean lastWasCreated() {
+        return lastWasCreated;
+    }
+
+    public int getPathFetchCount() {
+        return pathFetchCount;
+    }
+
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    public int getCreatedCount() {
+        return createdCount;
+    }
+
+}
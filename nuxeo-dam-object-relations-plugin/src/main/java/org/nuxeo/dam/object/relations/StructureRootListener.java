@@ -0,0 +1,60 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.event.DocumentEventTypes;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Tells the {@link StructureRootService} to reload the roots of a repository when one of them is moved, removed or
+ * renamed (its title changed), or when a folder is moved or removed (it may be a parent of a root).
+ *
+ * @since 7.4
+ */
+public class StructureRootListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) {
+
+        EventContext ctx = event.getContext();
+        if (!(ctx instanceof DocumentEventContext)) {
+            return;
+        }
+
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        if (doc == null || doc.isProxy() || doc.isVersion()) {
+            return;
+        }
+
+        boolean isRoot = StructureRootServiceImpl.TITLES.containsKey(doc.getType());
+        if (DocumentEventTypes.DOCUMENT_UPDATED.equals(event.getName())) {
+            if (!isRoot) {
+                return;
+            }
+        } else if (!isRoot && !doc.hasFacet("Folderish")) {
+            return;
+        }
+
+        Framework.getService(StructureRootService.class).invalidate(doc.getRepositoryName());
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+
+/**
+ * Resolves the folders where the relation targets are created (the "02. Licenses" IPcontractRoot, ...), per repository.
+ * <p>
+ * Paths are loaded at startup (one query per repository), or on first use, and reloaded when one of these folders (or
+ * one of their parents) is moved or removed, or after a while (a change made on another node is not notified).
+ *
+ * @since 7.4
+ */
+public interface StructureRootService {
+
+    String IPCONTRACT_ROOT = "IPcontractRoot";
+
+    String ART_FILE_NUMBER_CONTAINER = "ArtFileNumberContainer";
+
+    String STYLE_NUMBER_CONTAINER = "StyleNumberContainer";
+
+    /**
+     * @param inRootType one of {@link #IPCONTRACT_ROOT}, {@link #ART_FILE_NUMBER_CONTAINER},
+     *            {@link #STYLE_NUMBER_CONTAINER}
+     * @return the path of the root in the repository of <code>inSession</code>
+     * @throws RuntimeException if the root does not exist
+     */
+    String getPath(CoreSession inSession, String inRootType);
+
+    /**
+     * The paths of <code>inRepositoryName</code> will be loaded again at next call.
+     */
+    void invalidate(String inRepositoryName);
+
+}
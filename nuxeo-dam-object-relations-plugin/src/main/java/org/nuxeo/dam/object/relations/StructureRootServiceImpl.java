@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * The 3 roots of a repository are loaded with one query, and stored in an immutable {@link Roots}, published through a
+ * concurrent map: A thread never sees a partially loaded repository.
+ *
+ * @since 7.4
+ */
+public class StructureRootServiceImpl extends DefaultComponent implements StructureRootService {
+
+    private static final Log log = LogFactory.getLog(StructureRootServiceImpl.class);
+
+    public static final String REFRESH_PROP = "dam.object.relations.roots.refresh.seconds";
+
+    protected static final Map<String, String> TITLES;
+    static {
+        Map<String, String> titles = new HashMap<String, String>();
+        titles.put(IPCONTRACT_ROOT, AssetRelationsBuilder.IPCONTRACTROOT_TITLE);
+        titles.put(ART_FILE_NUMBER_CONTAINER, AssetRelationsBuilder.ARTFILENUMBERCONTAINER_TITLE);
+        titles.put(STYLE_NUMBER_CONTAINER, AssetRelationsBuilder.STYLEUMBERCONTAINER_TITLE);
+        TITLES = Collections.unmodifiableMap(titles);
+    }
+
+    protected final ConcurrentMap<String, Roots> roots = new ConcurrentHashMap<>();
+
+    protected long refreshMillis;
+
+    @Override
+    public void activate(ComponentContext context) {
+        refreshMillis = AssetRelationsCaches.getIntProperty(REFRESH_PROP, 600) * 1000L;
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) {
+        roots.clear();
+    }
+
+    /*
+     * Prewarm: The first import after a deploy does not pay for the queries. Not an error if the roots don't exist yet
+     */
+    @Override
+    public void applicationStarted(ComponentContext context) {
+
+        RepositoryManager repositoryManager = Framework.getLocalService(RepositoryManager.class);
+        if (repositoryManager == null) {
+            return;
+        }
+
+        boolean started = TransactionHelper.startTransaction();
+        try {
+            for (final String repositoryName : repositoryManager.getRepositoryNames()) {
+                new UnrestrictedSessionRunner(repositoryName) {
+                    @Override
+                    public void run() {
+                        Roots loaded = load(session);
+                        if (loaded.paths.size() == TITLES.size()) {
+                            roots.put(repositoryName, loaded);
+                        } else {
+                            log.info("Some structure roots are missing in <" + repositoryName
+                                    + ">, they will be loaded on first use");
+                        }
+                    }
+                }.runUnrestricted();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Cannot load the structure roots at startup, they will be loaded on first use", e);
+        } finally {
+            if (started) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+    @Override
+    public String getPath(CoreSession inSession, String inRootType) {
+
+        String repositoryName = inSession.getRepositoryName();
+        Roots current = roots.get(repositoryName);
+        if (current == null || current.loadedAt + refreshMillis < System.currentTimeMillis()
+                || !current.paths.containsKey(inRootType)) {
+            current = load(inSession);
+            roots.put(repositoryName, current);
+        }
+
+        String path = current.paths.get(inRootType);
+        // We give up if we don't find it
+        if (path == null) {
+            throw new RuntimeException("Cannot find a " + inRootType + " with dc:title of " + TITLES.get(inRootType));
+        }
+        return path;
+    }
+
+    @Override
+    public void invalidate(String inRepositoryName) {
+        roots.remove(inRepositoryName);
+    }
+
+    protected Roots load(CoreSession inSession) {
+
+        List<Map<String, Serializable>> rows = NxqlBuilder.select(NXQL.ECM_PRIMARYTYPE, NXQL.ECM_PATH, "dc:title").from(
+                "Document").in(NXQL.ECM_PRIMARYTYPE, TITLES.keySet()).in("dc:title", TITLES.values()).live().fetch(
+                inSession);
+
+        Map<String, String> paths = new HashMap<String, String>();
+        for (Map<String, Serializable> row : rows) {
+            String type = (String) row.get(NXQL.ECM_PRIMARYTYPE);
+            // Check the title matches the type (the query is not that precise), first found wins, as before
+            if (TITLES.get(type).equals(row.get("dc:title")) && !paths.containsKey(type)) {
+                paths.put(type, (String) row.get(NXQL.ECM_PATH));
+            }
+        }
+        return new Roots(paths);
+    }
+
+    protected static class Roots {
+
+        protected final Map<String, String> paths;
+
+        protected final long loadedAt;
+
+        protected Roots(Map<String, String> inPaths) {
+            paths = Collections.unmodifiableMap(inPaths);
+            loadedAt = System.currentTimeMillis();
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Decides when to commit a long running update. A commit is due when, since the last commit, whichever comes first:
+ * <ul>
+ * <li>The number of saved documents reached the current batch size</li>
+ * <li>The number of visited documents (saved or not) reached <code>dam.object.relations.batch.visited</code></li>
+ * <li>The transaction is open for more than <code>dam.object.relations.batch.seconds</code></li>
+ * </ul>
+ * The batch size (saved documents) is adjusted after each commit, from the measured times:
+ * <ul>
+ * <li>The time budget was reached: The batch is too big, it is halved</li>
+ * <li>The commit took more than 20% of the batch time: Commits are expensive compared to the work, the batch is
+ * doubled</li>
+ * <li>The batch took less than a quarter of the time budget: It grows by 50%</li>
+ * </ul>
+ * So we commit rarely when it's cheap to do so, and never keep a transaction open long enough to time out.
+ *
+ * @since 7.4
+ */
+public class TransactionBatcher {
+
+    private static final Log log = LogFactory.getLog(TransactionBatcher.class);
+
+    public static final String BATCH_SAVED_PROP = "dam.object.relations.batch.saved";
+
+    public static final String BATCH_VISITED_PROP = "dam.object.relations.batch.visited";
+
+    public static final String BATCH_SECONDS_PROP = "dam.object.relations.batch.seconds";
+
+    protected static final int MIN_BATCH_SIZE = 10;
+
+    protected static final int MAX_BATCH_SIZE = 2000;
+
+    protected final String label;
+
+    protected final int maxVisited;
+
+    protected final long maxMillis;
+
+    protected int batchSize;
+
+    protected int visited = 0;
+
+    protected int saved = 0;
+
+    protected long batchStart;
+
+    protected long commitCount = 0;
+
+    public TransactionBatcher(String inLabel) {
+
+        label = inLabel;
+        batchSize = Math.max(MIN_BATCH_SIZE, AssetRelationsCaches.getIntProperty(BATCH_SAVED_PROP, 50));
+        maxVisited = AssetRelationsCaches.getIntProperty(BATCH_VISITED_PROP, 1000);
+        maxMillis = AssetRelationsCaches.getIntProperty(BATCH_SECONDS_PROP, 10) * 1000L;
+        batchStart = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if a commit is due (see {@link #commit()})
+     */
+    public boolean add(int inVisited, int inSaved) {
+
+        visited += inVisited;
+        saved += inSaved;
+        return saved >= batchSize || visited >= maxVisited || elapsed() >= maxMillis;
+    }
+
+    /**
+     * Commits the current transaction, starts a new one, and adjusts the batch size.
+     */
+    public void commit() {
+
+        long batchMillis = elapsed();
+        long commitStart = System.currentTimeMillis();
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+        long commitMillis = System.currentTimeMillis() - commitStart;
+
+        commitCount += 1;
+        if (saved > 0) {
+            adjust(batchMillis, commitMillis);
+        }
+
+        visited = 0;
+        saved = 0;
+        batchStart = System.currentTimeMillis();
+    }
+
+    protected void adjust(long inBatchMillis, long inCommitMillis) {
+
+        int previous = batchSize;
+        if (inBatchMillis >= maxMillis) {
+            batchSize = saved / 2;
+        } else if (saved >= batchSize) {
+            // Only grow when the batch was full: A batch ended by the visited count says nothing about the size
+            if (inCommitMillis * 5 > inBatchMillis) {
+                batchSize = batchSize * 2;
+            } else if (inBatchMillis * 4 < maxMillis) {
+                batchSize = batchSize * 3 / 2;
+            }
+        }
+        batchSize = Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, batchSize));
+
+        if (batchSize != previous && log.isDebugEnabled()) {
+            log.debug(label + ": Batch size " + previous + " => " + batchSize + " (batch: " + inBatchMillis
+                    + " ms, commit: " + inCommitMillis + " ms)");
+        }
+    }
+
+    protected long elapsed() {
+        return System.currentTimeMillis() - batchStart;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getCommitCount() {
+        return commitCount;
+    }
+
+}
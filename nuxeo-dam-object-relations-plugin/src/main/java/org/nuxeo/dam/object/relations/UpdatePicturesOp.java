@@ -17,45 +17,88 @@
 
 package org.nuxeo.dam.object.relations;
 
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.nuxeo.datademo.tools.DocumentsCallback;
-import org.nuxeo.datademo.tools.DocumentsWalker;
-import org.nuxeo.datademo.tools.DocumentsCallback.ReturnStatus;
 import org.nuxeo.ecm.automation.core.Constants;
 import org.nuxeo.ecm.automation.core.annotations.Context;
 import org.nuxeo.ecm.automation.core.annotations.Operation;
 import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
-import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.api.DocumentRef;
-import org.nuxeo.ecm.platform.dublincore.listener.DublinCoreListener;
+import org.nuxeo.ecm.core.query.sql.NXQL;
 import org.nuxeo.runtime.transaction.TransactionHelper;
 
 /**
- * 
+ * With <code>parallelism</code> > 1, the Pictures are split in disjoint partitions (<code>ecm:uuid</code> ranges),
+ * each of them updated by a worker thread with its own session and transaction. Relation targets shared by several
+ * partitions are still created only once (see
+ * {@link RelationTargetCache#createOnce(String, RelationTargetCache.Creator)}).
+ * <p>
+ * The progress is saved after each commit (see {@link PicturesUpdateCheckpoint}). With <code>resume</code>, the
+ * operation continues from there instead of walking all the Pictures again. The partitions must be the same as in the
+ * interrupted run (same <code>parallelism</code>), else they start from scratch.
+ * <p>
+ * With <code>incremental</code>, only the Pictures created or modified (renamed, ...) since the start of the last
+ * successful incremental run are updated (<code>dc:modified</code> watermark, minus a small overlap for the
+ * transactions that were not committed yet). Saving the relations does not change <code>dc:modified</code>. A
+ * resumed run uses the start of the interrupted run as its watermark.
+ * <p>
+ * Returns a JSON blob with the aggregated counts.
  */
-@Operation(id=UpdatePicturesOp.ID, category=Constants.CAT_SERVICES, label="Demo: Update Pictures", description="WARNING: If you have a lot of Pictures, call this operaiton from an async. event.")
+@Operation(id=UpdatePicturesOp.ID, category=Constants.CAT_SERVICES, label="Demo: Update Pictures", description="WARNING: If you have a lot of Pictures, call this operaiton from an async. event. Returns a JSON blob with the counts.")
 public class UpdatePicturesOp {
 
     public static final String ID = "Demo.UpdatePictures";
     
     private static final Log log = LogFactory.getLog(UpdatePicturesOp.class);
-    
-    protected static final int COMMIT_MODULO = 50;
-    
-    protected int countSaved;
 
-    private UpdateDataWalkerCallback walkerCallback;
-    
+    public static final int MAX_PARALLELISM = 32;
+
+    // Documents saved (but not committed yet) when the previous run started are also handled
+    public static final String INCREMENTAL_OVERLAP_PROP = "dam.object.relations.incremental.overlap.seconds";
+
+    public static final int DEFAULT_INCREMENTAL_OVERLAP = 300;
+
+    protected static final String TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+
+    // 2 hexadecimal digits of the uuid
+    protected static final int UUID_BUCKETS = 256;
+
     @Context
     protected CoreSession session;
 
+    // Resolves the relations of a whole page at once (see BulkAssetRelationsBuilder)
+    @Param(name = "bulk", required = false)
+    boolean bulk = false;
+
+    @Param(name = "parallelism", required = false)
+    int parallelism = 1;
+
+    // Continue from the checkpoint of the previous (interrupted) run
+    @Param(name = "resume", required = false)
+    boolean resume = false;
+
+    // Only the Pictures modified since the last incremental run
+    @Param(name = "incremental", required = false)
+    boolean incremental = false;
+
+    protected PicturesUpdateCheckpoint checkpoint;
+
     @OperationMethod
-    public void run() {
+    public Blob run() {
 
         log.warn("Updating Picture documents...");
 
@@ -64,77 +107,160 @@ public class UpdatePicturesOp {
         
         String nxql = "SELECT * FROM Picture WHERE (admin:is_copy IS NULL OR admin:is_copy = 0)";
         nxql += " AND ecm:isCheckedInVersion = 0 AND ecm:isProxy=0 AND ecm:currentLifeCycleState != 'deleted'";
-        
-        countSaved = 0;
-        
-        DocumentsWalker dw = new DocumentsWalker(session, nxql, 1000);
-        walkerCallback = new UpdateDataWalkerCallback();
-        dw.runForEachDocument(walkerCallback);
+
+        long startTime = System.currentTimeMillis();
+        checkpoint = new PicturesUpdateCheckpoint(session.getRepositoryName());
+        if (resume) {
+            if (!checkpoint.load()) {
+                log.warn("No checkpoint found, starting from scratch");
+            } else if (checkpoint.getRunStart() > 0) {
+                // Pictures before the last processed uuids may have been modified since the interrupted run started
+                startTime = checkpoint.getRunStart();
+            }
+        } else {
+            checkpoint.clear();
+        }
+        checkpoint.saveRunStart(startTime);
+
+        long watermark = incremental ? checkpoint.getWatermark() : 0;
+        if (watermark > 0) {
+            int overlap = AssetRelationsCaches.getIntProperty(INCREMENTAL_OVERLAP_PROP, DEFAULT_INCREMENTAL_OVERLAP);
+            String since = new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date(watermark - overlap * 1000L));
+            nxql += " AND dc:modified >= TIMESTAMP '" + since + "'";
+            log.warn("Incremental: Pictures modified since " + since);
+        } else if (incremental) {
+            log.warn("No watermark found, updating all the Pictures");
+        }
+
+        List<PicturesUpdater> updaters;
+        int partitions = Math.max(1, Math.min(parallelism, MAX_PARALLELISM));
+        if (partitions == 1) {
+            PicturesUpdater updater = new PicturesUpdater("Pictures", nxql, bulk);
+            updater.withCheckpoint(checkpoint, resume);
+            updater.run(session);
+            updaters = new ArrayList<PicturesUpdater>();
+            updaters.add(updater);
+        } else {
+            updaters = runPartitions(nxql, partitions);
+        }
         
         TransactionHelper.commitOrRollbackTransaction();
         TransactionHelper.startTransaction();
 
-        log.warn("...updating done.");
+        boolean failed = false;
+        for (PicturesUpdater updater : updaters) {
+            failed |= updater.hasFailed();
+        }
+        if (!failed) {
+            checkpoint.clear();
+            if (incremental) {
+                checkpoint.saveWatermark(startTime);
+            }
+        }
+
+        log.warn("...updating done. " + AssetRelationsCaches.getStatsAsString());
+
+        return Blobs.createBlob(toJsonString(updaters), "application/json");
     }
-    
-    protected class UpdateDataWalkerCallback implements DocumentsCallback {
 
-        long documentCount = 0;
+    protected List<PicturesUpdater> runPartitions(String inNxql, int inPartitions) {
 
-        ReturnStatus lastReturnStatus;
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(inPartitions, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable inRunnable) {
+                Thread t = new Thread(inRunnable, "UpdatePictures-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
 
-        @Override
-        public ReturnStatus callback(List<DocumentModel> inDocs) {
+        List<PicturesUpdater> updaters = new ArrayList<PicturesUpdater>();
+        List<Future<PicturesUpdater>> futures = new ArrayList<Future<PicturesUpdater>>();
+        try {
+            for (int i = 0; i < inPartitions; i++) {
+                PicturesUpdater updater = new PicturesUpdater(getPartitionLabel(i, inPartitions), inNxql
+                        + getPartitionFilter(i, inPartitions), bulk);
+                updater.withSessionInfo(session.getRepositoryName(), session.getPrincipal());
+                updater.withCheckpoint(checkpoint, resume);
+                updaters.add(updater);
+                futures.add(executor.submit(updater));
+            }
 
-            throw new RuntimeException("Should not be here. We are walking doc by doc");
+            for (Future<PicturesUpdater> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // PicturesUpdater#call() already logs and flags its errors
+                    log.error("Error in a partition", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
         }
 
-        @Override
-        public ReturnStatus callback(DocumentModel inDoc) {
+        return updaters;
+    }
 
-            documentCount += 1;
-            try {
-                doUpdateDoc(inDoc);
-            } catch (Exception e) {
-                log.error("Error while updating a document", e);
-                return ReturnStatus.STOP;
-            }
+    // Also the key of the partition in the checkpoint
+    protected static String getPartitionLabel(int inIndex, int inCount) {
 
-            return ReturnStatus.CONTINUE;
+        int low = inIndex * UUID_BUCKETS / inCount;
+        int high = (inIndex + 1) * UUID_BUCKETS / inCount;
+        return "Partition " + String.format("%02x", low) + "-" + String.format("%02x", high);
+    }
 
-        }
+    /*
+     * Partition inIndex covers a contiguous range of the first 2 hexadecimal digits of ecm:uuid. The bounds are
+     * complete uuids, so they can be compared to an id stored as a real uuid (VCS idType=uuid on PostgreSQL), and the
+     * primary key index is used. No lower bound for the first partition, no upper bound for the last one
+     */
+    protected static String getPartitionFilter(int inIndex, int inCount) {
 
-        @Override
-        public void init() {
-            // Unused here
-        }
+        int low = inIndex * UUID_BUCKETS / inCount;
+        int high = (inIndex + 1) * UUID_BUCKETS / inCount;
 
-        @Override
-        public void end(ReturnStatus inLastReturnStatus) {
-            lastReturnStatus = inLastReturnStatus;
+        StringBuilder filter = new StringBuilder();
+        if (low > 0) {
+            filter.append(" AND ecm:uuid >= ").append(NXQL.escapeString(getBucketStart(low)));
         }
-
-        public long getDocumentCount() {
-            return documentCount;
+        if (high < UUID_BUCKETS) {
+            filter.append(" AND ecm:uuid < ").append(NXQL.escapeString(getBucketStart(high)));
         }
+        return filter.toString();
+    }
 
+    // The smallest uuid starting with the 2 hexadecimal digits of inBucket
+    protected static String getBucketStart(int inBucket) {
+        return String.format("%02x", inBucket) + "000000-0000-0000-0000-000000000000";
     }
-    
-    protected void doUpdateDoc(DocumentModel inDoc) {
 
-        AssetRelationsBuilder arb = new AssetRelationsBuilder(inDoc, session);
-        inDoc = arb.run();
-        
-        if(arb.docWasModifiedAndSaved()) {
-            countSaved += 1;
-            if((countSaved % COMMIT_MODULO) == 0) {
-                log.warn("Updated: " + countSaved);
+    protected String toJsonString(List<PicturesUpdater> inUpdaters) {
 
-                TransactionHelper.commitOrRollbackTransaction();
-                TransactionHelper.startTransaction();
+        long documents = 0;
+        long saved = 0;
+        int failed = 0;
+        for (PicturesUpdater updater : inUpdaters) {
+            documents += updater.getDocumentCount();
+            saved += updater.getCountSaved();
+            if (updater.hasFailed()) {
+                failed += 1;
             }
         }
-        
+
+        String str = "{";
+        str += "\"resumed\":" + resume + ",";
+        str += "\"incremental\":" + incremental + ",";
+        str += "\"partitions\":" + inUpdaters.size() + ",";
+        str += "\"failedPartitions\":" + failed + ",";
+        str += "\"documents\":" + documents + ",";
+        str += "\"saved\":" + saved;
+        str += "}";
+
+        return str;
     }
 
 }
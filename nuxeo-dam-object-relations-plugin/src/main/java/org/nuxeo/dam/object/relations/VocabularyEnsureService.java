@@ -0,0 +1,43 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+/**
+ * Makes sure values used in documents exist in their vocabulary.
+ * <p>
+ * Values are checked against a cached set of ids (see {@link VocabularyIdSet}). The missing ones are collected, and
+ * created when {@link #flush()} is called. The caller must flush before the end of its transaction: Values still
+ * pending then are dropped.
+ *
+ * @since 7.4
+ */
+public interface VocabularyEnsureService {
+
+    /**
+     * Registers <code>inValue</code> as to be created in <code>inVocabulary</code> if it does not exist. Does nothing
+     * if the value is blank or already known.
+     */
+    void ensure(String inVocabulary, String inValue);
+
+    /**
+     * Creates now all the missing values registered by the current transaction (or thread, if there is none).
+     *
+     * @return the number of entries created
+     */
+    int flush();
+
+}
@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.NamingException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Pending values are kept per transaction (per thread when there is no transaction). The first time a value is pending
+ * in a transaction, a synchronization is registered to drop the values not flushed when the transaction completes.
+ * They are not created from the synchronization: Entries are created in their own transaction (see
+ * {@link VocabularyIdSet}), which cannot be started while the current one completes.
+ *
+ * @since 7.4
+ */
+public class VocabularyEnsureServiceImpl extends DefaultComponent implements VocabularyEnsureService {
+
+    private static final Log log = LogFactory.getLog(VocabularyEnsureServiceImpl.class);
+
+    // Ordering of the entries we create
+    protected static final int ENTRY_ORDERING = 0;
+
+    // When there is no transaction
+    protected final ThreadLocal<PendingValues> threadPendingValues = new ThreadLocal<>();
+
+    @Override
+    public void ensure(String inVocabulary, String inValue) {
+
+        if (StringUtils.isBlank(inValue)) {
+            return;
+        }
+
+        if (VocabularyIdSet.get(inVocabulary, ENTRY_ORDERING).contains(inValue)) {
+            return;
+        }
+
+        getPendingValues(true).add(inVocabulary, inValue);
+    }
+
+    @Override
+    public int flush() {
+
+        PendingValues pending = getPendingValues(false);
+        return pending == null ? 0 : pending.flush();
+    }
+
+    protected PendingValues getPendingValues(boolean inCreate) {
+
+        PendingValues pending = getTransactionPendingValues(inCreate);
+        if (pending != null) {
+            return pending;
+        }
+
+        pending = threadPendingValues.get();
+        if (pending == null && inCreate) {
+            pending = new PendingValues();
+            threadPendingValues.set(pending);
+        }
+        return pending;
+    }
+
+    /*
+     * Bound to the transaction through the synchronization registry, so the synchronization is registered once per
+     * transaction. Null if there is no transaction (or no registry)
+     */
+    protected PendingValues getTransactionPendingValues(boolean inCreate) {
+
+        if (!TransactionHelper.isTransactionActive()) {
+            return null;
+        }
+
+        try {
+            TransactionSynchronizationRegistry registry = TransactionHelper.lookupSynchronizationRegistry();
+            PendingValues pending = (PendingValues) registry.getResource(this);
+            if (pending == null && inCreate) {
+                pending = new PendingValues();
+                registry.registerInterposedSynchronization(pending);
+                registry.putResource(this, pending);
+            }
+            return pending;
+        } catch (NamingException | IllegalStateException e) {
+            // The caller is expected to flush() anyway
+            log.debug("Cannot register a synchronization", e);
+            return null;
+        }
+    }
+
+    protected class PendingValues implements Synchronization {
+
+        protected Map<String, Set<String>> values = new HashMap<String, Set<String>>();
+
+        protected synchronized void add(String inVocabulary, String inValue) {
+
+            Set<String> vocabularyValues = values.get(inVocabulary);
+            if (vocabularyValues == null) {
+                vocabularyValues = new LinkedHashSet<String>();
+                values.put(inVocabulary, vocabularyValues);
+            }
+            vocabularyValues.add(inValue);
+        }
+
+        protected int flush() {
+
+            Map<String, Set<String>> toCreate;
+            synchronized (this) {
+                toCreate = values;
+                values = new HashMap<String, Set<String>>();
+            }
+            if (this == threadPendingValues.get()) {
+                threadPendingValues.remove();
+            }
+
+            int count = 0;
+            for (Map.Entry<String, Set<String>> entry : toCreate.entrySet()) {
+                count += VocabularyIdSet.get(entry.getKey(), ENTRY_ORDERING).ensureEntries(entry.getValue());
+            }
+            return count;
+        }
+
+        @Override
+        public void beforeCompletion() {
+            // Nothing to do, see flush()
+        }
+
+        @Override
+        public synchronized void afterCompletion(int inStatus) {
+
+            // After a rollback, the documents using them are not saved either
+            if (inStatus == Status.STATUS_COMMITTED && !values.isEmpty()) {
+                log.warn("Values not created, flush() was not called before the commit: " + values);
+            }
+            values.clear();
+        }
+    }
+
+}
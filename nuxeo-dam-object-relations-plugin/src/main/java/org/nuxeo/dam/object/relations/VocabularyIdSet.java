@@ -0,0 +1,274 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * The ids of a vocabulary, loaded once and shared by all the threads, so checking a value does not need a directory
+ * session.
+ * <p>
+ * The ids are reloaded after a while (see {@link #REFRESH_PROP}), or when {@link #invalidate()} is called: An admin
+ * may have removed an entry. A value not found in the set is always checked against the directory before being
+ * created, so entries added by an admin or by another node are never created twice. Creation of a given id is done
+ * by only one thread at a time, the others wait for it.
+ * <p>
+ * An entry is created in its own transaction, committed before the other threads stop waiting (see
+ * {@link NewTransactionRunner}): A transaction which cannot see an uncommitted entry would create it again, and fail
+ * on the unique id. The entry is kept if the caller's transaction is rolled back.
+ *
+ * @since 7.4
+ */
+public class VocabularyIdSet {
+
+    private static final Log log = LogFactory.getLog(VocabularyIdSet.class);
+
+    public static final String REFRESH_PROP = "dam.object.relations.vocabulary.refresh.seconds";
+
+    protected static final ConcurrentMap<String, VocabularyIdSet> INSTANCES = new ConcurrentHashMap<>();
+
+    protected final String directoryName;
+
+    protected final int ordering;
+
+    protected final long refreshMillis;
+
+    protected volatile Set<String> ids = null;
+
+    protected volatile long loadedAt = 0;
+
+    protected volatile Boolean hasParent = null;
+
+    protected final ConcurrentMap<String, FutureTask<Boolean>> creationsInProgress = new ConcurrentHashMap<>();
+
+    protected VocabularyIdSet(String inDirectoryName, int inOrdering) {
+        directoryName = inDirectoryName;
+        ordering = inOrdering;
+        refreshMillis = AssetRelationsCaches.getIntProperty(REFRESH_PROP, 300) * 1000L;
+    }
+
+    /**
+     * Returns the shared instance for <code>inDirectoryName</code>. <code>inOrdering</code> is the "ordering" of the
+     * entries created, it is used only the first time.
+     */
+    public static VocabularyIdSet get(String inDirectoryName, int inOrdering) {
+
+        VocabularyIdSet set = INSTANCES.get(inDirectoryName);
+        if (set == null) {
+            set = new VocabularyIdSet(inDirectoryName, inOrdering);
+            VocabularyIdSet existing = INSTANCES.putIfAbsent(inDirectoryName, set);
+            if (existing != null) {
+                set = existing;
+            }
+        }
+        return set;
+    }
+
+    public String getDirectoryName() {
+        return directoryName;
+    }
+
+    public void invalidate() {
+        loadedAt = 0;
+    }
+
+    protected Set<String> getIds() {
+
+        Set<String> current = ids;
+        if (current == null || (System.currentTimeMillis() - loadedAt) > refreshMillis) {
+            synchronized (this) {
+                current = ids;
+                if (current == null || (System.currentTimeMillis() - loadedAt) > refreshMillis) {
+                    current = load();
+                    ids = current;
+                    loadedAt = System.currentTimeMillis();
+                }
+            }
+        }
+        return current;
+    }
+
+    protected Set<String> load() {
+
+        Set<String> loaded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        DirectoryService directoryService = Framework.getService(DirectoryService.class);
+        Session directorySession = directoryService.open(directoryName);
+        try {
+            List<String> values = directorySession.getProjection(new HashMap<String, Serializable>(), "id");
+            loaded.addAll(values);
+        } finally {
+            directorySession.close();
+        }
+
+        if (hasParent == null) {
+            SchemaManager schemaManager = Framework.getService(SchemaManager.class);
+            Schema schema = schemaManager.getSchema(directoryService.getDirectorySchema(directoryName));
+            hasParent = schema != null && schema.hasField("parent");
+        }
+
+        return loaded;
+    }
+
+    public boolean contains(String inId) {
+        return getIds().contains(inId);
+    }
+
+    /**
+     * Creates the entry if it does not exist yet.
+     *
+     * @return true if the entry was created by this call
+     */
+    public boolean ensureEntry(String inId) {
+
+        if (inId == null || contains(inId)) {
+            return false;
+        }
+        return ensureEntries(Collections.singletonList(inId)) > 0;
+    }
+
+    /**
+     * Creates the entries that don't exist yet, each one in its own transaction.
+     *
+     * @return the number of entries created by this call
+     */
+    public int ensureEntries(Collection<String> inIds) {
+
+        List<String> missing = new ArrayList<String>();
+        for (String id : inIds) {
+            if (id != null && !contains(id)) {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return 0;
+        }
+
+        int count = 0;
+        for (final String id : missing) {
+            // Single flight: the first thread creates (and commits) the entry, the others wait for it
+            FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return createEntryInNewTransaction(id);
+                }
+            });
+            FutureTask<Boolean> inProgress = creationsInProgress.putIfAbsent(id, task);
+            if (inProgress != null) {
+                waitFor(inProgress);
+                continue;
+            }
+
+            try {
+                task.run();
+                if (waitFor(task)) {
+                    count += 1;
+                }
+            } finally {
+                creationsInProgress.remove(id, task);
+            }
+        }
+
+        return count;
+    }
+
+    protected boolean waitFor(FutureTask<Boolean> inTask) {
+
+        try {
+            return inTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ClientException("Cannot create the entry in " + directoryName, cause);
+        }
+    }
+
+    protected boolean createEntryInNewTransaction(final String inId) {
+
+        final boolean[] created = new boolean[1];
+        NewTransactionRunner.run(new Runnable() {
+            @Override
+            public void run() {
+                Session directorySession = Framework.getService(DirectoryService.class).open(directoryName);
+                try {
+                    created[0] = createEntryIfNeeded(directorySession, inId);
+                } finally {
+                    directorySession.close();
+                }
+            }
+        });
+
+        // Committed, visible to all the sessions
+        getIds().add(inId);
+        return created[0];
+    }
+
+    protected boolean createEntryIfNeeded(Session inDirectorySession, String inId) {
+
+        boolean created = false;
+        // The set may be outdated, the directory is the reference
+        if (!inDirectorySession.hasEntry(inId)) {
+            inDirectorySession.createEntry(buildEntry(inId));
+            created = true;
+            if (log.isDebugEnabled()) {
+                log.debug("Created <" + inId + "> in " + directoryName);
+            }
+        }
+
+        return created;
+    }
+
+    protected Map<String, Object> buildEntry(String inId) {
+
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("id", inId);
+        entry.put("label", inId);
+        if (Boolean.TRUE.equals(hasParent)) {
+            entry.put("parent", "");
+        }
+        entry.put("obsolete", 0);
+        entry.put("ordering", ordering);
+
+        return entry;
+    }
+
+}
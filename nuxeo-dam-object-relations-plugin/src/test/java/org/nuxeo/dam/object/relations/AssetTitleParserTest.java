@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The expected values are the ones extracted by the first implementation of AssetRelationsBuilder (before
+ * {@link AssetTitleParser}), for the same titles.
+ *
+ * @since 7.4
+ */
+public class AssetTitleParserTest {
+
+    protected AssetTitleParser.ParsedTitle parsed;
+
+    @Before
+    public void setUp() {
+        parsed = new AssetTitleParser.ParsedTitle();
+    }
+
+    protected void assertLicensed(String inTitle, boolean inComposition, int inYear, String inCode, String inSeqNumber,
+            String inSuffix, String inName) {
+
+        assertTrue(AssetTitleParser.parse(inTitle, parsed));
+        assertTrue(parsed.isLicensed());
+        assertEquals(inComposition, parsed.isComposition());
+        assertEquals(inYear, parsed.getLicenseYear());
+        assertEquals(inCode, parsed.getLicenseCode());
+        assertEquals(inSeqNumber, parsed.getSeqNumber());
+        assertEquals(inSuffix, parsed.getSeqNumberSuffix());
+        assertEquals(inName, parsed.getName());
+        assertTrue(parsed.hasLinkingInfo());
+    }
+
+    protected void assertCompositionResource(String inTitle, String inDepartment, String inSeqNumber, String inSuffix,
+            String inName) {
+
+        assertTrue(AssetTitleParser.parse(inTitle, parsed));
+        assertFalse(parsed.isLicensed());
+        assertTrue(parsed.isComposition());
+        assertEquals(inDepartment, parsed.getDepartment());
+        assertEquals(inSeqNumber, parsed.getSeqNumber());
+        assertEquals(inSuffix, parsed.getSeqNumberSuffix());
+        assertEquals(inName, parsed.getName());
+        assertTrue(parsed.hasLinkingInfo());
+    }
+
+    @Test
+    public void testLicensedComposition() {
+
+        assertLicensed("15BTMN002B King Of Bats cmp.psd", true, 15, "BTMN", "002", "B", "King Of Bats");
+        assertEquals("psd", parsed.getExtension());
+        assertLicensed("15SPDR12 Spider Web comp.tif", true, 15, "SPDR", "12", "", "Spider Web");
+    }
+
+    @Test
+    public void testLicensedNotComposition() {
+
+        assertLicensed("15BTMN002 King Of Bats.jpg", false, 15, "BTMN", "002", "", "King Of Bats");
+        // Only the last dot starts the extension
+        assertLicensed("16BTMN010 Name With Dots v1.2.png", false, 16, "BTMN", "010", "", "Name With Dots v1.2");
+    }
+
+    @Test
+    public void testCompositionResource() {
+
+        assertCompositionResource("GR125 basic crew with side tie COMP.psd", "GR", "125", "",
+                "basic crew with side tie");
+        assertCompositionResource("JR228 Gym Tote Comp.psd", "JR", "228", "", "Gym Tote");
+        assertCompositionResource("AB12C3 two digits cmp.png", "AB", "12", "C3", "two digits");
+    }
+
+    @Test
+    public void testCompositionResourceWithSecondCompWord() {
+        assertCompositionResource("GR125B basic crew with side tie comp comp.psd", "GR", "125", "B",
+                "basic crew with side tie");
+    }
+
+    @Test
+    public void testNoLinkingInfo() {
+
+        // No space after the sequence number
+        assertTrue(AssetTitleParser.parse("15BTMN002B.psd", parsed));
+        assertTrue(parsed.isLicensed());
+        assertEquals("BTMN", parsed.getLicenseCode());
+        assertEquals("", parsed.getSeqNumber());
+        assertFalse(parsed.hasLinkingInfo());
+
+        // No department, number or name
+        assertTrue(AssetTitleParser.parse("GR comp.psd", parsed));
+        assertTrue(parsed.isComposition());
+        assertFalse(parsed.hasLinkingInfo());
+
+        // Not licensed (we don't handle a start with "00"), not a composition
+        assertTrue(AssetTitleParser.parse("00ABCD001 Zero Year.jpg", parsed));
+        assertFalse(parsed.isLicensed());
+        assertFalse(parsed.isComposition());
+        assertFalse(parsed.hasLinkingInfo());
+
+        assertTrue(AssetTitleParser.parse("Holiday picture.jpg", parsed));
+        assertFalse(parsed.isLicensed());
+        assertFalse(parsed.isComposition());
+        assertFalse(parsed.hasLinkingInfo());
+    }
+
+    @Test
+    public void testTooShort() {
+
+        assertFalse(AssetTitleParser.parse(null, parsed));
+        assertFalse(AssetTitleParser.parse("abc.jpg", parsed));
+        assertFalse(parsed.isParsed());
+
+        assertTrue(AssetTitleParser.parse("short.jp", parsed));
+        assertTrue(parsed.isParsed());
+        assertFalse(parsed.hasLinkingInfo());
+    }
+
+    @Test
+    public void testReuse() {
+
+        assertLicensed("15BTMN002B King Of Bats cmp.psd", true, 15, "BTMN", "002", "B", "King Of Bats");
+
+        // Nothing left from the previous title
+        assertTrue(AssetTitleParser.parse("Holiday picture.jpg", parsed));
+        assertEquals(0, parsed.getLicenseYear());
+        assertEquals("", parsed.getLicenseCode());
+        assertEquals("", parsed.getSeqNumber());
+        assertEquals("", parsed.getSeqNumberSuffix());
+        assertEquals("", parsed.getName());
+        assertEquals("jpg", parsed.getExtension());
+    }
+
+}
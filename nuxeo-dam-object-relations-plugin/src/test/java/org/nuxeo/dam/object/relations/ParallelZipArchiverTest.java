@@ -0,0 +1,201 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.dam.object.relations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes the same entries through the parallel and the sequential paths, and reads them back with
+ * <code>java.util.zip.ZipFile</code>.
+ *
+ * @since 7.4
+ */
+public class ParallelZipArchiverTest {
+
+    protected File folder;
+
+    // Entry name => content, in the order they are added
+    protected Map<String, byte[]> expected;
+
+    @Before
+    public void setUp() throws IOException {
+
+        folder = Files.createTempDirectory("ParallelZipArchiverTest").toFile();
+        expected = new LinkedHashMap<String, byte[]>();
+
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            html.append("<div class=\"cell\"><img src=\"img/img-").append(i).append(".jpg\"></div>\n");
+        }
+        expected.put("index.html", html.toString().getBytes(StandardCharsets.UTF_8));
+        expected.put("css/style-\u00fc.css", "body { margin: 0; }\n".getBytes(StandardCharsets.UTF_8));
+        expected.put("img/photo-\u00e9\u00e8.jpg", randomBytes(300 * 1024, 1));
+        expected.put("img/\u65e5\u672c.png", randomBytes(1000, 2));
+        expected.put("data/empty.txt", new byte[0]);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(folder);
+    }
+
+    protected static byte[] randomBytes(int inSize, long inSeed) {
+
+        byte[] bytes = new byte[inSize];
+        new Random(inSeed).nextBytes(bytes);
+        return bytes;
+    }
+
+    // Half of the entries from files, half from memory
+    protected ParallelZipArchiver buildArchiver(long inThreshold, int inThreads) throws IOException {
+        return fill(new ParallelZipArchiver(inThreshold, inThreads));
+    }
+
+    protected ParallelZipArchiver fill(ParallelZipArchiver inArchiver) throws IOException {
+
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            if (i % 2 == 0) {
+                File file = new File(folder, "source-" + i);
+                Files.write(file.toPath(), entry.getValue());
+                inArchiver.add(entry.getKey(), file);
+            } else {
+                inArchiver.add(entry.getKey(), entry.getValue());
+            }
+            i += 1;
+        }
+        return inArchiver;
+    }
+
+    protected void checkZip(File inZip) throws IOException {
+
+        ZipFile zip = new ZipFile(inZip, StandardCharsets.UTF_8);
+        try {
+            List<String> names = new ArrayList<String>();
+            Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            while (zipEntries.hasMoreElements()) {
+                names.add(zipEntries.nextElement().getName());
+            }
+            assertEquals(new ArrayList<String>(expected.keySet()), names);
+
+            for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+                ZipEntry zipEntry = zip.getEntry(entry.getKey());
+                assertNotNull(entry.getKey(), zipEntry);
+
+                int method = MiniSiteZipWriter.isStored(entry.getKey()) ? ZipEntry.STORED : ZipEntry.DEFLATED;
+                assertEquals(entry.getKey(), method, zipEntry.getMethod());
+
+                byte[] content = entry.getValue();
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                assertEquals(entry.getKey(), crc.getValue(), zipEntry.getCrc());
+                assertEquals(entry.getKey(), content.length, zipEntry.getSize());
+
+                InputStream in = zip.getInputStream(zipEntry);
+                try {
+                    assertArrayEquals(entry.getKey(), content, read(in));
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    protected static byte[] read(InputStream inStream) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = inStream.read(buffer)) >= 0) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+
+        ParallelZipArchiver archiver = buildArchiver(0, 4);
+        assertTrue(archiver.isParallel());
+
+        File zip = new File(folder, "parallel.zip");
+        archiver.writeTo(zip);
+        checkZip(zip);
+    }
+
+    @Test
+    public void testSmallWindow() throws IOException {
+
+        // One entry at a time in memory
+        ParallelZipArchiver archiver = fill(new ParallelZipArchiver(0, 4, 1));
+        assertTrue(archiver.isParallel());
+
+        File zip = new File(folder, "window.zip");
+        archiver.writeTo(zip);
+        checkZip(zip);
+    }
+
+    @Test
+    public void testSequential() throws IOException {
+
+        ParallelZipArchiver archiver = buildArchiver(0, 1);
+        assertFalse(archiver.isParallel());
+
+        File zip = new File(folder, "sequential.zip");
+        archiver.writeTo(zip);
+        checkZip(zip);
+    }
+
+    @Test
+    public void testBelowThreshold() throws IOException {
+
+        ParallelZipArchiver archiver = buildArchiver(Long.MAX_VALUE, 4);
+        assertFalse(archiver.isParallel());
+
+        File zip = new File(folder, "small.zip");
+        archiver.writeTo(zip);
+        checkZip(zip);
+    }
+
+}